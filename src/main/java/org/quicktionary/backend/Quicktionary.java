@@ -53,6 +53,17 @@ public class Quicktionary {
 		/* set default */
 		configs.setOption("appFolder", System.getProperty("user.home") + separator + ".quicktionary");
 		configs.setOption("database", Configs.getOption("appFolder") + separator + "datastore.db");
+		configs.setOption("database.mappedReads", new Boolean(true));
+		configs.setOption("database.mappedIndex", new Boolean(true));
+		configs.setOption("database.perfectHash", new Boolean(true));
+		configs.setOption("database.compression", new Boolean(true));
+		configs.setOption("database.coldSource", new Boolean(true));
+		configs.setOption("database.sharedSubtrees", new Boolean(false));
+		configs.setOption("database.flushCount", new Integer(10000));
+		configs.setOption("database.flushSize", new Integer(64));
+		configs.setOption("database.flushInterval", new Integer(600));
+		configs.setOption("database.pageCacheSize", new Integer(32));
+		configs.setOption("database.recordCacheSize", new Integer(64));
 
 		/* create the app directory if it doesn't already exist */
 		new File((String)Configs.getOption("appFolder")).mkdirs();
@@ -103,6 +114,16 @@ public class Quicktionary {
 		return database.newWord(word);
 	}
 
+	/**
+	 * Add new word with its page to the WordDatabase.
+	 *
+	 * @param word    The word to be added
+	 * @param content The page of the word
+	 */
+	public WordEntry newWord(String word, TextNode content) {
+		return database.newWord(word, null, content);
+	}
+
 	/**
 	 * Remove old word from the word database.
 	 * TODO: change param to WordEntry
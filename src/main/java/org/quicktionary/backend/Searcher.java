@@ -17,6 +17,7 @@
 package org.quicktionary.backend;
 
 import org.quicktionary.backend.database.WordDatabase;
+import org.quicktionary.backend.database.SearchCursor;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -31,6 +32,7 @@ class Searcher {
 	private AtomicBoolean searchRunning;
 	private AtomicInteger requestCount;
 	private SearcherThread searchThread;
+	private volatile SearchCursor cursor;
 
 	private SearchResultListener resultListener;
 
@@ -94,7 +96,7 @@ class Searcher {
 		resultListener.resetSearchResults();
 
 		/*TODO: move to another thread */
-		database.requestResults(query);
+		cursor = database.search(query);
 	}
 
 	/**
@@ -157,8 +159,10 @@ class Searcher {
 
 	private void searchResults() {
 		WordEntry[] entries;
+		SearchCursor cursor;
 		int resultCount, requestCount, i;
 
+		cursor = this.cursor;
 		if(resultListener == null) {
 			return;
 		}
@@ -171,7 +175,7 @@ class Searcher {
 
 		while(resultCount < requestCount) {
 			/* check if we didn't get any words then exit */
-			if(database.fetchResults(entries, requestCount) == 0) {
+			if(cursor == null || cursor.fetch(entries, requestCount) == 0) {
 				/* inform the gui that there isn't more search results */
 				resultListener.appendSearchResult(null);
 				break;
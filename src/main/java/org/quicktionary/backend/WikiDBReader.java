@@ -22,11 +22,10 @@ import java.io.FileReader;
 import java.io.StringReader;
 import java.io.IOException;
 
-import java.util.Calendar;
-
 import org.quicktionary.backend.parsers.XMLParser;
 import org.quicktionary.backend.parsers.WikiMarkup;
 import org.quicktionary.backend.database.WordDatabase;
+import org.quicktionary.backend.database.BulkLoader;
 
 /**
  * WikiDBReader extracts the wiki pages from a wikimedia database dump.
@@ -35,6 +34,7 @@ public class WikiDBReader implements Runnable {
 	private XMLParser parser;
 	private WikiMarkup wikiParser;
 	private WordDatabase database;
+	private BulkLoader loader;
 	private File file;
 	private boolean dontOverwrite;
 
@@ -86,8 +86,6 @@ public class WikiDBReader implements Runnable {
 			return;
 		}
 
-		WordEntry entry;
-
 		if(dontOverwrite && database.containsWordEntry(title)) {
 			return;
 		}
@@ -105,9 +103,17 @@ public class WikiDBReader implements Runnable {
 		header.setTextContent(title);
 		root.prependChild(header);
 
-		entry = database.newWord(title);
-		entry.addSource(text);
-		entry.setContent(root);
+		/* the database syncs the pages in the background */
+		if(loader == null) {
+			database.newWord(title, text, root);
+			return;
+		}
+
+		try {
+			loader.add(title, text, root);
+		} catch(IOException exception) {
+			System.out.println("Failed to write the page " + title + ": " + exception);
+		}
 	}
 
 	private void readPage() {
@@ -148,24 +154,33 @@ public class WikiDBReader implements Runnable {
 	}
 
 	public void run() {
-		Calendar next;
 		if(!parser.isInitialized()) {
 			throw new Error("You have to run first the check method.");
 		}
 
-		next = Calendar.getInstance();
-		next.roll(Calendar.MINUTE, 10);
+		/* the empty database is filled without sorting
+		 * every word to the index one by one */
+		loader = database.isEmpty() ? database.bulkLoad() : null;
+
+		try {
+			while(parser.findElement(PAGE_TAG)) {
+				readPage();
+			}
 
-		while(parser.findElement(PAGE_TAG)) {
-			/* check if 10 minutes is gone */
-			if(next.before(Calendar.getInstance())) {
-				database.sync();
-				next = Calendar.getInstance();
-				next.roll(Calendar.MINUTE, 10);
+			if(loader != null) {
+				loader.finish();
+				loader = null;
+			}
+		} catch(IOException exception) {
+			System.out.println("Failed to write the index " + exception);
+		} finally {
+			/* the load that didn't finish leaves its records unused */
+			if(loader != null) {
+				loader.cancel();
+				loader = null;
 			}
-			readPage();
 		}
-		database.sync();
+		database.checkpoint();
 	}
 
 	/**
@@ -18,10 +18,12 @@ package org.quicktionary.backend;
 
 import org.quicktionary.backend.TextNode;
 import org.quicktionary.backend.database.WordEntryIO;
-import java.lang.ref.SoftReference;
 
 /**
  * This class contains all information about particular word.
+ *
+ * The entry keeps the page only while it is changed. Otherwise
+ * the page is taken from the page cache of the database.
  */
 public class WordEntry {
 	private String word, source, description;
@@ -29,26 +31,11 @@ public class WordEntry {
 	private WordEntryIO io;
 	private boolean storable;
 
-	private SoftReference<String> sourceWeak;
-	private SoftReference<TextNode> contentWeak;
-
 	public WordEntry(String word, String source, TextNode content, boolean storable) {
 		this.word = word;
 		this.source = source;
 		this.content = content;
 		this.storable = storable;
-
-		this.sourceWeak = null;
-		this.contentWeak = null;
-
-		/**/
-		if(source != null) {
-			this.sourceWeak = new SoftReference<String>(source);
-		}
-		if(content != null) {
-			this.contentWeak = new SoftReference<TextNode>(content);
-		}
-		/**/
 	}
 	public WordEntry(String word, String source, TextNode content) {
 		this(word, source, content, true);
@@ -58,24 +45,14 @@ public class WordEntry {
 		this(word, null, null);
 	}
 
-	//public void addSource(String source) {
-	//	this.source = source;
-	//}
-	//public void setContent(TextNode content) {
-	//	this.content = content;
-	//}
 	public void addSource(String source) {
 		this.source = source;
-		if(source != null) {
-			sourceWeak = new SoftReference<String>(source);
-		}
+		if(io != null) io.sourceChanged();
 	}
 
 	public void setContent(TextNode content) {
 		this.content = content;
-		if(content != null) {
-			contentWeak = new SoftReference<TextNode>(content);
-		}
+		if(io != null) io.changed();
 	}
 
 	public void setDescription(String description) {
@@ -90,31 +67,23 @@ public class WordEntry {
 		return description;
 	}
 
-	//public TextNode getContent() {
-	//	return content;
-	//}
-	//public String getSource() {
-	//	return source;
-	//}
-	//public boolean isLoaded() {
-	//	return content != null;
-	//}
 	public TextNode getContent() {
-		if(content != null) return content;
-		return (contentWeak != null) ? contentWeak.get() : null;
+		if(content != null || io == null) return content;
+		return io.fetchContent();
 	}
 
+	/**
+	 * The source may be kept apart from the page, so it is
+	 * read from the database when it is needed.
+	 */
 	public String getSource() {
-		if(source != null) return source;
-		return (sourceWeak != null) ? sourceWeak.get() : null;
+		if(source != null || io == null) return source;
+		return io.fetchSource();
 	}
 
 	public boolean isLoaded() {
-		if(contentWeak != null) {
-			TextNode weak = contentWeak.get();
-			if(weak != null) return true;
-		}
-		return content != null;
+		if(content != null) return true;
+		return io != null && io.isCached();
 	}
 
 	public boolean isStorable() {
@@ -0,0 +1,147 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The set of the words that may give false positives, but never
+ * false negatives. A word sets a few bits that are chosen by its
+ * hash, and a word that has any of its bits unset isn't in the set.
+ *
+ * With ten bits and seven hashes for each word about one percent of
+ * the missing words are reported as present. The words can't be
+ * removed, so the filter is built again when it gets full.
+ */
+class BloomFilter {
+	private final static int BITS_PER_WORD = 10;
+	private final static int HASH_COUNT = 7;
+
+	private long[] bits;
+	private long bitCount;
+	private int capacity;
+	private int count;
+
+	/**
+	 * @param capacity The number of the words that fit to the filter
+	 */
+	public BloomFilter(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.bitCount = (long)this.capacity * BITS_PER_WORD;
+		this.bits = new long[(int)((bitCount + 63) / 64)];
+		this.count = 0;
+	}
+
+	/**
+	 * Get the number of the words that were added.
+	 * The words that seemed to exist already aren't counted.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Check if more words would make the false positives more likely.
+	 */
+	public boolean isFull() {
+		return count > capacity;
+	}
+
+	public void add(String word) {
+		long hash = hash(word);
+		int first = (int)hash, second = (int)(hash >>> 32);
+		boolean added = false;
+
+		for(int i = 0; i < HASH_COUNT; i++) {
+			long bit = ((first + (long)i * second) & Long.MAX_VALUE) % bitCount;
+			long mask = 1L << (bit & 63);
+			int index = (int)(bit >>> 6);
+
+			if((bits[index] & mask) == 0) {
+				bits[index] |= mask;
+				added = true;
+			}
+		}
+		if(added) {
+			count++;
+		}
+	}
+
+	/**
+	 * Check if the word may be in the set.
+	 * @return False if the word certainly isn't in the set
+	 */
+	public boolean mightContain(String word) {
+		long hash = hash(word);
+		int first = (int)hash, second = (int)(hash >>> 32);
+
+		for(int i = 0; i < HASH_COUNT; i++) {
+			long bit = ((first + (long)i * second) & Long.MAX_VALUE) % bitCount;
+
+			if((bits[(int)(bit >>> 6)] & (1L << (bit & 63))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * FNV-1a of the characters with the final mix of MurmurHash3,
+	 * so that both halves of the hash are usable.
+	 */
+	private static long hash(String word) {
+		long hash = 0xcbf29ce484222325L;
+
+		for(int i = 0; i < word.length(); i++) {
+			hash ^= word.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	public void write(DataOutput output) throws IOException {
+		output.writeInt(capacity);
+		output.writeInt(count);
+		for(long word : bits) {
+			output.writeLong(word);
+		}
+	}
+
+	public static BloomFilter read(DataInput input) throws IOException {
+		BloomFilter filter;
+		int capacity;
+
+		capacity = input.readInt();
+		if(capacity <= 0) {
+			throw new IOException("The filter is corrupted.");
+		}
+		filter = new BloomFilter(capacity);
+		filter.count = input.readInt();
+		for(int i = 0; i < filter.bits.length; i++) {
+			filter.bits[i] = input.readLong();
+		}
+		return filter;
+	}
+}
@@ -0,0 +1,130 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.quicktionary.backend.WordEntry;
+import org.quicktionary.backend.TextNode;
+
+/**
+ * Adds a lot of words to the database at once. The records are
+ * appended straight to the data store and only the words and the
+ * addresses are kept. They are sorted with the ExternalSorter, so the
+ * memory use doesn't depend on the number of the words, and the index
+ * is written once at the end.
+ *
+ * The words aren't found from the database before finish is called.
+ * If the same word is added many times, the last one is kept.
+ */
+public class BulkLoader {
+	private final static int BATCH_SIZE = 1000;
+	private final static int RUN_SIZE = 200000;
+
+	private WordDatabase database;
+	private DataStoreIO io;
+	private ExternalSorter sorter;
+	private List<WordEntryIO> batch;
+	private int count;
+
+	protected BulkLoader(WordDatabase database, DataStoreIO io, File directory) {
+		this(database, io, directory, RUN_SIZE);
+	}
+
+	/**
+	 * @param runSize The number of the words that are sorted in the memory
+	 */
+	protected BulkLoader(WordDatabase database, DataStoreIO io, File directory, int runSize) {
+		this.database = database;
+		this.io = io;
+		this.sorter = (io != null) ? new ExternalSorter(directory, runSize) : null;
+		this.batch = new ArrayList<WordEntryIO>();
+		this.count = 0;
+	}
+
+	/**
+	 * Add a word with its page.
+	 * @param word The word
+	 * @param source The source of the page
+	 * @param content The page
+	 */
+	public void add(String word, String source, TextNode content) throws IOException {
+		/* the database that is only in the memory doesn't have files */
+		if(io == null) {
+			database.newWord(word, source, content);
+			return;
+		}
+
+		batch.add(new WordEntryIO(new WordEntry(word, source, content), 0));
+		if(batch.size() >= BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write the records of the batch and give the addresses to the sorter.
+	 */
+	private void flush() throws IOException {
+		io.writeBulk(batch);
+		for(WordEntryIO entry : batch) {
+			sorter.add(entry.data.getWord(), entry.data.getDescription(), entry.address);
+		}
+		count += batch.size();
+		batch.clear();
+	}
+
+	/**
+	 * Get the number of the words that are added.
+	 */
+	public int size() {
+		return count + batch.size();
+	}
+
+	/**
+	 * Write the index, so that the words can be found.
+	 */
+	public void finish() throws IOException {
+		if(io == null) {
+			return;
+		}
+
+		try {
+			if(!batch.isEmpty()) {
+				flush();
+			}
+			System.out.println("DB: write the index of " + count + " bulk loaded words");
+			database.finishBulkLoad(sorter.sorted());
+		} finally {
+			sorter.close();
+		}
+	}
+
+	/**
+	 * Stop the load without writing the index. The
+	 * records that were written are left unused.
+	 */
+	public void cancel() {
+		if(sorter != null) {
+			sorter.close();
+			io.cancelBulk();
+		}
+		batch.clear();
+	}
+}
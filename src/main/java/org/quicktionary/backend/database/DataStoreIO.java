@@ -19,31 +19,160 @@ package org.quicktionary.backend.database;
 import java.lang.String;
 import java.io.File;
 import java.io.IOException;
+import java.io.EOFException;
+import java.io.DataOutput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Arrays;
+import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.Iterator;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.io.UnsupportedEncodingException;
 
 import org.quicktionary.backend.WordEntry;
+import org.quicktionary.backend.TextNode;
 
+/**
+ * The data store file contains a header and the records of the words.
+ *
+ * The header has the signature, the path of the index file and in
+ * the current version the address of the compression dictionary.
+ * Every record starts with its length. In the current version the
+ * next byte has the flags of the record, and the compressed records
+ * have also the original length as varint. The records with the cold
+ * source flag have the address of the source in the source store
+ * instead of the source itself.
+ *
+ * The records of the changed and the removed words are left in the
+ * data store, until the compaction copies the records that the index
+ * still uses to a new data store. Every compaction starts a new
+ * generation, and the entries of the older generations find their
+ * records again from the index.
+ *
+ * The records are read and appended with the positional reads and
+ * writes of the file channel, so the readers don't share the file
+ * pointer with each other or with the writer.
+ */
 class DataStoreIO {
-	private final static byte[] DATASTORE_HEADER_SIGNATURE = {'W', 'D', 'B', 0};
+	private final static byte[] DATASTORE_HEADER_SIGNATURE = {'W', 'D', 'B', 1};
+	private final static byte[] FILTER_SIGNATURE = {'W', 'B', 'F', 0};
+	private final static int LEGACY_VERSION = 0;
+	private final static int CURRENT_VERSION = 1;
+	private final static long DICTIONARY_POSITION = 4 + 4 + 255;
+
+	protected final static int RECORD_COMPRESSED = 1;
+	protected final static int RECORD_DICTIONARY = 2;
+	protected final static int RECORD_COLD_SOURCE = 4;
+
+	private final static int MIN_DICTIONARY_SAMPLES = 20;
+	private final static int MAX_DICTIONARY_SAMPLES = 1000;
+
+	/* the index is rewritten when the log gets larger than this */
+	private final static long CHECKPOINT_LOG_SIZE = 4 * 1024 * 1024;
+
+	/* the segments are merged when there are this many of them, and
+	 * they are merged to the index when they have at least this
+	 * fraction of the words of the index */
+	private final static int MAX_SEGMENTS = 4;
+	private final static int SEGMENT_RATIO = 4;
+
+	/* the data store is compacted when at least this fraction of
+	 * it is unused, but not before there is this much to gain */
+	private final static int GARBAGE_RATIO = 2;
+	private final static long MIN_GARBAGE_SIZE = 16 * 1024 * 1024;
+
+	private final static long DEFAULT_PAGE_CACHE_SIZE = 32 * 1024 * 1024;
+	private final static long DEFAULT_RECORD_CACHE_SIZE = 64 * 1024 * 1024;
+	private final static int INTERNED_STRINGS = 16 * 1024;
+
+	/* the records of a batch that are this close are read together */
+	private final static long MAX_READ_GAP = 64 * 1024;
+	private final static long MAX_READ_SIZE = 4 * 1024 * 1024;
+
+	private final static int WRITE_BUFFER_SIZE = 256 * 1024;
 
 	private IndexIO index;
 	private RandomAccessFile dataStore;
+	private MappedFile mappedStore;
 	private File dataStoreFile;
 
-	private TreeMap<String, WordEntryIO> map;
+	private int version;
+	private boolean compression;
+	private long dictionaryAddress;
+	private volatile RecordCompressor compressor;
+
+	private SourceStore sources;
+	private boolean coldSource;
+
+	private SubtreeStore subtrees;
+	private boolean sharedSubtrees;
+
+	private SegmentedIndex table;
+	private SegmentManifest manifest;
 	private List<WordEntryIO> changedEntries;
 
+	private WriteAheadLog log;
+	private SortedMap<String, WordEntryIO> recovered;
+
+	private PageCache pages;
+	private RecordCache records;
+	private StringInterner strings;
+
+	/* the readers hold the read lock, so the compaction
+	 * replaces the data store only between the reads */
+	private ReentrantReadWriteLock storeLock;
+	private volatile int generation;
+	private long garbageSize;
+	private boolean bulkLoading;
+
+	/* the position of the next record, only the writer uses it */
+	private long appendPosition;
+
+	/* the records are encoded to the write buffer and written together */
+	private RecordEncoder writeBuffer;
+	private List<WordEntryIO> bufferedEntries;
+	/* the count of the entries written by the current push */
+	private int flushedEntries;
+
+	private ThreadPoolExecutor fetchExecutor;
+
 	public DataStoreIO(File dataStoreFile) {
 		boolean exists = true;
 
 		changedEntries = Collections.synchronizedList(new LinkedList<WordEntryIO>());
+		pages = new PageCache(DEFAULT_PAGE_CACHE_SIZE);
+		records = new RecordCache(DEFAULT_RECORD_CACHE_SIZE);
+		strings = new StringInterner(INTERNED_STRINGS);
+		storeLock = new ReentrantReadWriteLock();
+		writeBuffer = new RecordEncoder(WRITE_BUFFER_SIZE + 64 * 1024, true);
+		bufferedEntries = new ArrayList<WordEntryIO>();
+		generation = 0;
 		System.out.println("DB: read new database at " + dataStoreFile);
 
 		if(!dataStoreFile.exists()) {
@@ -58,7 +187,15 @@ class DataStoreIO {
 		}
 
 		this.dataStoreFile = dataStoreFile;
-		this.map = null;
+		this.table = null;
+		this.compression = false;
+		this.compressor = new RecordCompressor(null);
+		this.sources = new SourceStore(SourceStore.getSourceFile(dataStoreFile));
+		this.coldSource = false;
+		this.subtrees = new SubtreeStore(SubtreeStore.getSubtreeFile(dataStoreFile));
+		this.sharedSubtrees = false;
+		this.recovered = new TreeMap<String, WordEntryIO>();
+		this.manifest = new SegmentManifest(SegmentManifest.getManifestFile(dataStoreFile));
 		try {
 			readDataStoreHeader(exists);
 		} catch(IOException exception) {
@@ -74,13 +211,33 @@ class DataStoreIO {
 		return ioEntry;
 	}
 
+	/**
+	 * Create the WordEntryIO for a word that has a record.
+	 * @param entry The entry of the word
+	 * @param address The address of the record
+	 * @param source The index where the address was found
+	 */
+	public WordEntryIO openEntry(WordEntry entry, long address, IndexTable source) {
+		WordEntryIO ioEntry;
+
+		ioEntry = new WordEntryIO(entry, address);
+		ioEntry.store = this;
+		ioEntry.generation = (source instanceof SegmentedIndex) ?
+		                     ((SegmentedIndex)source).getGeneration() : generation;
+
+		return ioEntry;
+	}
+
 	public void markAsChanged(WordEntryIO entry) {
-		if(entry.isModified()) {
-			return;
+		synchronized(entry) {
+			/* the record that is being written is old now */
+			entry.changes++;
+			if(entry.isModified()) {
+				return;
+			}
+			changedEntries.add(entry);
+			entry.setModified(true);
 		}
-		System.out.println("DB: a word marked as modified: " + entry.data.getWord() + ".");
-		changedEntries.add(entry);
-		entry.setModified(true);
 	}
 
 	private void readDataStoreHeader(boolean exists) throws IOException {
@@ -88,7 +245,7 @@ class DataStoreIO {
 		String indexFilename;
 		byte[] signature = new byte[DATASTORE_HEADER_SIGNATURE.length];
 
-		if(!exists) {
+		if(!exists || dataStore.length() == 0) {
 			initializeDatabase();
 			return;
 		}
@@ -96,26 +253,275 @@ class DataStoreIO {
 		dataStore.seek(0);
 
 		/* check the signature */
-		dataStore.read(signature);
-		if(DATASTORE_HEADER_SIGNATURE.equals(signature)) {
+		dataStore.readFully(signature);
+		version = signature[signature.length - 1];
+		signature[signature.length - 1] = DATASTORE_HEADER_SIGNATURE[signature.length - 1];
+		if(!Arrays.equals(DATASTORE_HEADER_SIGNATURE, signature) ||
+		   version < LEGACY_VERSION || version > CURRENT_VERSION) {
 			throw new Error("This is not word database file");
 		}
 		/* read the path of the index file */
 		indexFilename = readIndexFilename();
 		indexFile = new File(indexFilename);
 
+		if(version != LEGACY_VERSION) {
+			readDictionary();
+		}
+
 		/* check if the index file is accidentally removed */
+		index = new IndexIO(this, indexFile);
 		if(indexFile.exists()) {
-			index = new IndexIO(this, indexFile);
-			map = index.readIndex();
+			table = openSegments(index.readIndex());
 		} else {
-			/*TODO: reconstruct the index */
-			initializeDatabase();
+			table = openSegments(reconstructIndex());
+		}
+		openLog(false);
+	}
+
+	/**
+	 * Open the segments of the index on top of the base index.
+	 * @param base The base index or null if it couldn't be read
+	 * @return The whole index or null if there isn't the base index
+	 */
+	private SegmentedIndex openSegments(IndexTable base) throws IOException {
+		List<IndexTable> segments = new ArrayList<IndexTable>();
+
+		if(base == null) {
+			return null;
+		}
+
+		manifest.read();
+		for(long number : manifest.getSegments()) {
+			segments.add(0, index.openSegment(manifest.getSegmentFile(number)));
+		}
+		return new SegmentedIndex(base, segments, generation);
+	}
+
+	/**
+	 * Use only the given base index and remove the segments.
+	 */
+	private SegmentedIndex replaceSegments(IndexTable base) throws IOException {
+		List<Long> old = new ArrayList<Long>(manifest.getSegments());
+
+		manifest.write(new ArrayList<Long>());
+		manifest.delete(old);
+		return new SegmentedIndex(base, new ArrayList<IndexTable>(), generation);
+	}
+
+	/**
+	 * Build the index again from the records of the data store. The
+	 * latest record of each word is used, and the segments are read
+	 * on top of it. The descriptions and the words that were removed
+	 * before the last compaction are lost.
+	 */
+	private IndexTable reconstructIndex() throws IOException {
+		IndexRebuilder rebuilder;
+		ExternalSorter sorter;
+		int count;
+
+		System.out.println("DB: the index is missing, reconstruct it from the data store");
+		rebuilder = new IndexRebuilder(this, new MappedFile(dataStore.getChannel()), getFirstRecordAddress());
+		sorter = new ExternalSorter(getDirectory(), 200000);
+		try {
+			count = rebuilder.rebuild(sorter);
+			System.out.println("DB: found " + count + " records");
+			return index.writeIndex(IndexTable.empty(), sorter.sorted());
+		} finally {
+			sorter.close();
 		}
 	}
 
-	public TreeMap<String, WordEntryIO> getIndex() {
-		return map;
+	/**
+	 * Get the address where the records start after the header.
+	 */
+	protected long getFirstRecordAddress() {
+		return (version == LEGACY_VERSION) ? DICTIONARY_POSITION : DICTIONARY_POSITION + 8;
+	}
+
+	/**
+	 * Get the word of a record. This doesn't trust the record,
+	 * because it is used to find the records from a data store
+	 * that doesn't have the index.
+	 * @param record The record without the length
+	 * @return The word or null if the record doesn't have a word
+	 */
+	protected String decodeRecordWord(ByteBuffer record) throws IOException {
+		int flags, length;
+
+		try {
+			if(version != LEGACY_VERSION) {
+				flags = record.get();
+				if((flags & ~(RECORD_COMPRESSED | RECORD_DICTIONARY | RECORD_COLD_SOURCE)) != 0) {
+					throw new IOException("The record has unknown flags.");
+				}
+				if((flags & RECORD_DICTIONARY) != 0) {
+					return null;
+				}
+				if((flags & RECORD_COMPRESSED) != 0) {
+					record = decompressRecord(record);
+				}
+			}
+
+			length = record.getInt();
+			if(length <= 0) {
+				throw new IOException("The record doesn't have a word.");
+			}
+			return TextNodeIO.decodeString(record, length);
+		} catch(BufferUnderflowException exception) {
+			throw new IOException("The record is corrupted", exception);
+		} catch(IllegalArgumentException exception) {
+			throw new IOException("The record is corrupted", exception);
+		}
+	}
+
+	/**
+	 * Decompress the body of the record.
+	 * @param record The record after the flags
+	 * @return The uncompressed body
+	 */
+	private ByteBuffer decompressRecord(ByteBuffer record) throws IOException {
+		int rawLength = VarInt.readInt(record);
+
+		return compressor.decompress(record, rawLength);
+	}
+
+	/**
+	 * Check if the record has the compression dictionary.
+	 */
+	protected boolean isDictionaryRecord(ByteBuffer record) {
+		return version != LEGACY_VERSION && record.remaining() > 0 &&
+		       (record.get(record.position()) & RECORD_DICTIONARY) != 0;
+	}
+
+	/**
+	 * Open the log and read the changes that were written after
+	 * the index file.
+	 * @param clear True if the old log should be discarded
+	 */
+	private void openLog(boolean clear) throws IOException {
+		log = new WriteAheadLog(WriteAheadLog.getLogFile(dataStoreFile));
+		if(clear) {
+			log.reset();
+			return;
+		}
+
+		recovered = log.replay(dataStore.length());
+		for(WordEntryIO entry : recovered.values()) {
+			if(entry != WordEntryIO.REMOVED) {
+				entry.store = this;
+				entry.generation = generation;
+			}
+		}
+		if(!recovered.isEmpty()) {
+			System.out.println("DB: recovered " + recovered.size() + " changes from the log");
+		}
+	}
+
+	/**
+	 * Get the changes that were read from the log when the data
+	 * store was opened. They aren't in the index file yet.
+	 * @return The changed words in the sorted order
+	 */
+	public SortedMap<String, WordEntryIO> getRecoveredChanges() {
+		SortedMap<String, WordEntryIO> changes = recovered;
+
+		recovered = new TreeMap<String, WordEntryIO>();
+		return changes;
+	}
+
+	/**
+	 * Read the filter of the words that was written for the current
+	 * index. The filter file has the name and the size of the index and
+	 * the number of the next segment, so the filter that was written
+	 * before the index changed isn't used.
+	 * @return The filter or null if it is missing or out of date
+	 */
+	public synchronized BloomFilter readFilter() {
+		DataInputStream stream;
+		byte[] signature;
+		File file;
+
+		file = getFilterFile();
+		if(index == null || table == null || !file.exists()) {
+			return null;
+		}
+
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				signature = new byte[FILTER_SIGNATURE.length];
+				stream.readFully(signature);
+				if(!Arrays.equals(FILTER_SIGNATURE, signature)) {
+					throw new IOException("This is not a filter of the words.");
+				}
+				if(stream.readLong() != manifest.getNextNumber() ||
+				   !stream.readUTF().equals(index.getIndexFile().toString()) ||
+				   stream.readInt() != table.entryCount()) {
+					System.out.println("DB: the filter of the words is out of date");
+					return null;
+				}
+				return BloomFilter.read(stream);
+			} finally {
+				stream.close();
+			}
+		} catch(IOException exception) {
+			System.out.println("DB: failed to read the filter of the words " + exception);
+		}
+		return null;
+	}
+
+	/**
+	 * Write the filter that has all the words of the current index.
+	 */
+	public synchronized void writeFilter(BloomFilter filter) {
+		DataOutputStream stream;
+		FileOutputStream output;
+		File file, temporary;
+
+		if(filter == null || index == null || table == null) {
+			return;
+		}
+
+		file = getFilterFile();
+		temporary = new File(file.getPath() + ".tmp");
+		try {
+			output = new FileOutputStream(temporary);
+			stream = new DataOutputStream(new BufferedOutputStream(output));
+			try {
+				stream.write(FILTER_SIGNATURE);
+				stream.writeLong(manifest.getNextNumber());
+				stream.writeUTF(index.getIndexFile().toString());
+				stream.writeInt(table.entryCount());
+				filter.write(stream);
+				stream.flush();
+				output.getChannel().force(true);
+			} finally {
+				stream.close();
+			}
+			Files.move(temporary.toPath(), file.toPath(),
+			           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException exception) {
+			System.out.println("DB: failed to write the filter of the words " + exception);
+		}
+	}
+
+	private File getFilterFile() {
+		return new File(dataStoreFile.getPath() + ".bloom");
+	}
+
+	/**
+	 * Get the directory of the data store for the temporary files.
+	 */
+	public File getDirectory() {
+		return dataStoreFile.getAbsoluteFile().getParentFile();
+	}
+
+	/**
+	 * Get the index that was opened with the data store.
+	 * @return The index or null if it couldn't be read
+	 */
+	public IndexTable getIndex() {
+		return table;
 	}
 
 	protected String readIndexFilename() throws IOException {
@@ -142,11 +548,41 @@ class DataStoreIO {
 
 	protected void writeDataStoreHeader(String filename) throws IOException {
 		dataStore.seek(0);
-		dataStore.write(DATASTORE_HEADER_SIGNATURE);
-		writeIndexFilename(filename);
+		writeDataStoreHeader(dataStore, filename, dictionaryAddress);
 	}
 
-	private void writeIndexFilename(String filename) throws IOException {
+	private void writeDataStoreHeader(DataOutput output, String filename, long dictionary) throws IOException {
+		byte[] signature = Arrays.copyOf(DATASTORE_HEADER_SIGNATURE, DATASTORE_HEADER_SIGNATURE.length);
+
+		signature[signature.length - 1] = (byte)version;
+		output.write(signature);
+		writeIndexFilename(output, filename);
+
+		if(version != LEGACY_VERSION) {
+			output.writeLong(dictionary);
+		}
+	}
+
+	private void readDictionary() throws IOException {
+		ByteBuffer record;
+		byte[] dictionary;
+
+		dataStore.seek(DICTIONARY_POSITION);
+		dictionaryAddress = dataStore.readLong();
+		if(dictionaryAddress == 0) {
+			return;
+		}
+
+		record = readRecord(dictionaryAddress);
+		if((record.get() & RECORD_DICTIONARY) == 0) {
+			throw new IOException("The dictionary of the data store is missing.");
+		}
+		dictionary = new byte[record.remaining()];
+		record.get(dictionary);
+		compressor = new RecordCompressor(dictionary);
+	}
+
+	private void writeIndexFilename(DataOutput output, String filename) throws IOException {
 		byte[] filenameBuffer = new byte[255];
 		byte[] buffer;
 
@@ -162,8 +598,8 @@ class DataStoreIO {
 		}
 
 		System.arraycopy(buffer, 0, filenameBuffer, 0, buffer.length);
-		dataStore.writeInt(buffer.length);
-		dataStore.write(filenameBuffer);
+		output.writeInt(buffer.length);
+		output.write(filenameBuffer);
 	}
 
 	/**
@@ -181,91 +617,1129 @@ class DataStoreIO {
 
 		/* clear the file */
 		dataStore.setLength(0);
+		version = CURRENT_VERSION;
+		dictionaryAddress = 0;
+		compressor = new RecordCompressor(null);
+		sources.clear();
+		subtrees.clear();
+		pages.clear();
+		records.clear();
+		garbageSize = 0;
+		getFilterFile().delete();
+		try {
+			manifest.read();
+		} catch(IOException exception) {
+		}
 
 		/* write new header */
 		writeDataStoreHeader(indexFilename);
 		index = new IndexIO(this, new File(indexFilename));
+		openLog(true);
+
+		/* the log needs an index file to be replayed on */
+		table = replaceSegments(index.writeIndex(IndexTable.empty(), new TreeMap<String, WordEntryIO>()));
+	}
+
+	/**
+	 * Enable or disable the memory mapped reads. When enabled the
+	 * records are decoded straight from the page cache of the OS
+	 * and the reads don't need any locking.
+	 * @param enabled True if the data store should be mapped
+	 */
+	public void setMappedReads(boolean enabled) {
+		if(!enabled || dataStore == null) {
+			mappedStore = null;
+			return;
+		}
+		if(mappedStore != null) {
+			return;
+		}
+
+		try {
+			mappedStore = new MappedFile(dataStore.getChannel());
+		} catch(IOException exception) {
+			System.out.println("DB: failed to map the data store " + exception);
+			mappedStore = null;
+		}
 	}
 
 	/**
-	 * Read a single word entry from data store.
-	 * @param entry The entry to be filled
+	 * Choose if the index is memory mapped or kept in the memory.
+	 * @param enabled True if the index should be mapped
+	 * @return The current index opened again or null if there isn't index file
 	 */
-	public void fetchWordEntry(WordEntryIO entry) {
+	public synchronized IndexTable setMappedIndex(boolean enabled) {
+		SegmentedIndex newTable;
+
+		if(index == null) {
+			return null;
+		}
+		index.setMapped(enabled);
+
 		try {
-			readWordEntry(entry);
+			newTable = openSegments(index.reopenIndex());
+			if(newTable != null) {
+				if(table != null) {
+					table.closeAll();
+				}
+				table = newTable;
+			}
+			return newTable;
 		} catch(IOException exception) {
-			System.out.println("exception");
+			System.out.println("DB: failed to open the index " + exception);
 		}
+		return null;
 	}
 
-	private void readWordEntry(WordEntryIO entry) throws IOException {
-		byte[] buffer;
+	/**
+	 * Write the perfect hash of the words to the index files,
+	 * so that the exact lookups don't search the index. This
+	 * takes effect when the index is written next time.
+	 * @param enabled True if the perfect hash should be written
+	 */
+	public void setPerfectHash(boolean enabled) {
+		if(index != null) {
+			index.setPerfectHash(enabled);
+		}
+	}
+
+	/**
+	 * Compress the records that are written. The dictionary for the
+	 * compression is trained from the first records that are written.
+	 * @param enabled True if the records should be compressed
+	 */
+	public void setCompression(boolean enabled) {
+		if(enabled && version == LEGACY_VERSION) {
+			System.out.println("DB: the records of old data store can't be compressed");
+			return;
+		}
+		compression = enabled;
+		sources.setCompression(enabled);
+	}
+
+	/**
+	 * Write the sources of the words to the source store, so that
+	 * reading a page doesn't read its source.
+	 * @param enabled True if the sources should be kept apart
+	 */
+	public void setColdSource(boolean enabled) {
+		if(enabled && version == LEGACY_VERSION) {
+			System.out.println("DB: the sources of old data store can't be kept apart");
+			return;
+		}
+		coldSource = enabled;
+	}
+
+	/**
+	 * Write the large trees that many pages have to the subtree store
+	 * only once. The pages that refer to the store are always read.
+	 * @param enabled True if the trees should be shared
+	 */
+	public void setSharedSubtrees(boolean enabled) {
+		sharedSubtrees = enabled;
+	}
+
+	protected SubtreeStore getSubtrees() {
+		return subtrees;
+	}
+
+	/**
+	 * Get the strings that the decoded pages share.
+	 */
+	protected StringInterner getStrings() {
+		return strings;
+	}
+
+	public boolean hasMappedReads() {
+		return mappedStore != null;
+	}
+
+	/**
+	 * Set how much memory the decoded pages may take.
+	 * @param size The estimated size of the pages in bytes
+	 */
+	public void setPageCacheSize(long size) {
+		pages.setCapacity(size);
+	}
+
+	public PageCache getPageCache() {
+		return pages;
+	}
+
+	/**
+	 * Set how much memory outside of the heap the decompressed
+	 * records may take. The records in the cache are dropped.
+	 * @param size The size of the cache in bytes
+	 */
+	public void setRecordCacheSize(long size) {
+		records.setCapacity(size);
+	}
+
+	public RecordCache getRecordCache() {
+		return records;
+	}
+
+	/**
+	 * Get the page of a word from the page cache, or read it
+	 * from the data store and add it to the cache.
+	 * @param entry The entry of the word
+	 * @return The page or null if it couldn't be read
+	 */
+	public PageCache.Page fetchPage(WordEntryIO entry) {
+		PageCache.Page page;
+		long address;
+
+		storeLock.readLock().lock();
+		try {
+			if(entry.generation != generation && !relocate(entry)) {
+				return null;
+			}
+
+			address = entry.address;
+			page = pages.get(address);
+			if(page != null) {
+				return page;
+			}
+
+			try {
+				page = readPage(entry, address);
+			} catch(IOException exception) {
+				System.out.println("DB: failed to read the page " + exception);
+				return null;
+			}
+			if(page != null) {
+				pages.put(address, page);
+			}
+			return page;
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find the record of the word from the current data store,
+	 * when the data store was compacted after the entry was made.
+	 * @return False if the word isn't in the index anymore
+	 */
+	private boolean relocate(WordEntryIO entry) {
+		SegmentedIndex current = table;
+		IndexTable.Cursor cursor;
+
+		cursor = (current != null) ? current.find(entry.data.getWord()) : null;
+		if(cursor == null) {
+			return false;
+		}
+		entry.address = cursor.getAddress();
+		entry.generation = current.getGeneration();
+		return entry.generation == generation;
+	}
+
+	/**
+	 * Check if the page of the entry is in the page cache.
+	 */
+	protected boolean isCached(WordEntryIO entry) {
+		return entry.generation == generation && pages.contains(entry.address);
+	}
+
+	/**
+	 * Read the source of a word from the source store.
+	 * @param address The address of the source
+	 * @return The source or null if it couldn't be read
+	 */
+	protected String fetchSource(long address) {
+		try {
+			return sources.read(address);
+		} catch(IOException exception) {
+			System.out.println("DB: failed to read the source " + exception);
+		}
+		return null;
+	}
+
+	/**
+	 * Read the pages of many words to the page cache. The records are
+	 * read in the order of their addresses, and the records that are
+	 * near each other are read with one read. The runs of the records
+	 * are read and decoded on the worker threads.
+	 * @param entries The entries of the words
+	 * @return The contents of the pages that could be read, including
+	 *         the pages that already were in the cache
+	 */
+	public Future<Map<WordEntry, TextNode>> fetchPages(Collection<WordEntryIO> entries) {
+		List<Future<Map<WordEntry, TextNode>>> runs = new ArrayList<Future<Map<WordEntry, TextNode>>>();
+		Map<WordEntry, TextNode> cached = new HashMap<WordEntry, TextNode>();
+		List<WordEntryIO> pending = new ArrayList<WordEntryIO>();
+		List<WordEntryIO> run;
+
+		storeLock.readLock().lock();
+		try {
+			for(WordEntryIO entry : entries) {
+				PageCache.Page page;
+
+				if(entry.store != this || entry.isModified()) {
+					continue;
+				}
+				if(entry.generation != generation && !relocate(entry)) {
+					continue;
+				}
+				/* the pages that are read aren't counted as misses */
+				page = pages.contains(entry.address) ? pages.get(entry.address) : null;
+				if(page != null) {
+					cached.put(entry.data, page.getContent());
+				} else {
+					pending.add(entry);
+				}
+			}
+		} finally {
+			storeLock.readLock().unlock();
+		}
+
+		Collections.sort(pending, new Comparator<WordEntryIO>() {
+			public int compare(WordEntryIO a, WordEntryIO b) {
+				return (a.address < b.address) ? -1 : (a.address > b.address) ? 1 : 0;
+			}
+		});
+
+		run = new ArrayList<WordEntryIO>();
+		for(WordEntryIO entry : pending) {
+			if(!run.isEmpty()) {
+				long first = run.get(0).address;
+				long previous = run.get(run.size() - 1).address;
+
+				if(entry.address - previous > MAX_READ_GAP || entry.address - first > MAX_READ_SIZE) {
+					runs.add(submitRun(run));
+					run = new ArrayList<WordEntryIO>();
+				}
+			}
+			run.add(entry);
+		}
+		if(!run.isEmpty()) {
+			runs.add(submitRun(run));
+		}
+		return new PageBatch(cached, runs);
+	}
+
+	private Future<Map<WordEntry, TextNode>> submitRun(final List<WordEntryIO> run) {
+		return getFetchExecutor().submit(new Callable<Map<WordEntry, TextNode>>() {
+			public Map<WordEntry, TextNode> call() throws IOException {
+				return readRun(run);
+			}
+		});
+	}
+
+	/**
+	 * Get the worker threads of the batches. The threads
+	 * stop when they haven't had anything to do for a while.
+	 */
+	private synchronized ThreadPoolExecutor getFetchExecutor() {
+		int threads;
+
+		if(fetchExecutor == null) {
+			threads = Runtime.getRuntime().availableProcessors();
+			fetchExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+			                                       new LinkedBlockingQueue<Runnable>(),
+			                                       new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Database fetch");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			fetchExecutor.allowCoreThreadTimeOut(true);
+		}
+		return fetchExecutor;
+	}
+
+	/**
+	 * Read the records of the run with one read and decode their pages.
+	 * A mapped data store gives the run as one slice of the mapping.
+	 * @param run The entries in the order of their addresses
+	 * @return The contents of the pages that were read
+	 */
+	private Map<WordEntry, TextNode> readRun(List<WordEntryIO> run) throws IOException {
+		Map<WordEntry, TextNode> contents = new HashMap<WordEntry, TextNode>();
+		WordEntryIO last;
+		ByteBuffer buffer;
+		long start;
 		int size;
 
+		storeLock.readLock().lock();
+		try {
+			/* the run isn't valid after the compaction */
+			if(dataStore == null || run.get(0).generation != generation) {
+				for(WordEntryIO entry : run) {
+					PageCache.Page page = fetchPage(entry);
+
+					if(page != null) {
+						contents.put(entry.data, page.getContent());
+					}
+				}
+				return contents;
+			}
+
+			start = run.get(0).address;
+			last = run.get(run.size() - 1);
+			size = readRecordSize(last.address);
+			if(size < 0 || last.address + 4 + size - start > Integer.MAX_VALUE) {
+				throw new IOException("The record is corrupted");
+			}
+			buffer = readRange(start, (int)(last.address + 4 + size - start));
+
+			for(WordEntryIO entry : run) {
+				ByteBuffer record;
+				PageCache.Page page;
+				int offset;
+
+				offset = (int)(entry.address - start);
+				size = buffer.getInt(offset);
+				if(size < 0 || offset + 4 + size > buffer.limit()) {
+					throw new IOException("The record is corrupted");
+				}
+
+				record = buffer.duplicate();
+				record.position(offset + 4);
+				record.limit(offset + 4 + size);
+				page = decodePage(entry, entry.address, record.slice());
+				if(page != null) {
+					pages.put(entry.address, page);
+					contents.put(entry.data, page.getContent());
+				}
+			}
+			return contents;
+		} finally {
+			storeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Read a range of the data store. The mapped data store
+	 * gives a slice of the mapping instead of a copy.
+	 */
+	private ByteBuffer readRange(long start, int length) throws IOException {
+		MappedFile mapped = mappedStore;
+
+		if(mapped == null) {
+			return readFully(ByteBuffer.allocate(length), start);
+		}
+
+		/* the records may have been written after the mapping */
+		if(start + length > mapped.length()) {
+			mapped.remap();
+		}
+		try {
+			return mapped.slice(start, length);
+		} catch(IndexOutOfBoundsException exception) {
+			throw new IOException("The record is outside of the data store", exception);
+		}
+	}
+
+	private PageCache.Page readPage(WordEntryIO entry, long address) throws IOException {
+		ByteBuffer record;
+		RecordCache.Record cached;
+		int flags = 0;
+
 		if(dataStore == null) {
-			return;
+			return null;
+		}
+
+		/* the decompressed record may still be in the record cache,
+		 * it is decoded straight from the cache */
+		cached = records.get(address);
+		if(cached != null) {
+			try {
+				record = cached.getBuffer();
+				flags = record.get();
+				return entry.readPage(record, (flags & RECORD_COLD_SOURCE) == 0);
+			} finally {
+				cached.release();
+			}
+		}
+		return decodePage(entry, address, readRecord(address));
+	}
+
+	/**
+	 * Decompress the record, add it to the record cache and decode the page.
+	 * @param record The record without the length
+	 */
+	private PageCache.Page decodePage(WordEntryIO entry, long address, ByteBuffer record) throws IOException {
+		int flags = 0;
+
+		try {
+			if(version != LEGACY_VERSION) {
+				flags = record.get();
+				if((flags & RECORD_COMPRESSED) != 0) {
+					record = decompressRecord(record);
+					flags &= ~RECORD_COMPRESSED;
+				}
+			}
+		} catch(BufferUnderflowException exception) {
+			throw new IOException("The record is corrupted", exception);
+		} catch(IllegalArgumentException exception) {
+			throw new IOException("The record is corrupted", exception);
+		}
+		records.put(address, flags, record);
+		return entry.readPage(record, (flags & RECORD_COLD_SOURCE) == 0);
+	}
+
+	/**
+	 * Get the record without the length.
+	 * @param address The address of the record
+	 * @return The buffer that has the record
+	 */
+	private ByteBuffer readRecord(long address) throws IOException {
+		MappedFile mapped;
+		byte[] buffer;
+		int size;
+
+		mapped = mappedStore;
+		if(mapped != null) {
+			return readMappedRecord(mapped, address);
+		}
+
+		size = readFully(ByteBuffer.allocate(4), address).getInt();
+		if(size < 0) {
+			throw new IOException("The record is corrupted");
 		}
+		return readFully(ByteBuffer.allocate(size), address + 4);
+	}
 
-		dataStore.seek(entry.address);
-		size = dataStore.readInt();
-		buffer = new byte[size];
+	/**
+	 * Fill the buffer from the data store without moving the file
+	 * pointer. The thread that reads must not be interrupted,
+	 * because that closes the channel.
+	 * @param buffer The buffer to be filled
+	 * @param position The position in the data store
+	 * @return The buffer that is flipped for reading
+	 */
+	private ByteBuffer readFully(ByteBuffer buffer, long position) throws IOException {
+		FileChannel channel = dataStore.getChannel();
 
-		dataStore.readFully(buffer);
-		entry.setData(buffer);
+		while(buffer.hasRemaining()) {
+			int count = channel.read(buffer, position);
+			if(count < 0) {
+				throw new EOFException("The record is outside of the data store");
+			}
+			position += count;
+		}
+		buffer.flip();
+		return buffer;
 	}
 
 	/**
-	 * Write all the changes to the database files.
-	 * @param map The index of the database
+	 * Write the buffer at the position without moving the file pointer.
 	 */
-	public void syncFile(TreeMap map) {
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		FileChannel channel = dataStore.getChannel();
+
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+
+	private ByteBuffer readMappedRecord(MappedFile mapped, long address) throws IOException {
+		int size;
+
+		/* the record may have been written after the mapping */
+		if(address + 4 > mapped.length()) {
+			mapped.remap();
+		}
+
 		try {
-			if(!changedEntries.isEmpty()) {
+			size = mapped.getInt(address);
+			if(address + 4 + size > mapped.length()) {
+				mapped.remap();
+			}
+			return mapped.slice(address + 4, size);
+		} catch(IndexOutOfBoundsException exception) {
+			throw new IOException("The record is outside of the data store", exception);
+		}
+	}
+
+	/**
+	 * Write the modified words to the data store and the changes to
+	 * the log. This is cheap, because the index file isn't touched.
+	 * The data store and the log are flushed to the disk once per call.
+	 *
+	 * @param changes The words that are changed after the previous call
+	 * @return True if the changes are on the disk
+	 */
+	public synchronized boolean logChanges(SortedMap<String, WordEntryIO> changes) {
+		if(log == null) {
+			return false;
+		}
+		if(changedEntries.isEmpty() && changes.isEmpty()) {
+			return true;
+		}
+
+		try {
+			pushChanges();
+			dataStore.getChannel().force(false);
+			log.append(changes);
+			return true;
+		} catch(IOException exception) {
+			System.out.println("DB: failed to write the changes " + exception);
+		}
+		return false;
+	}
+
+	/**
+	 * Check if the log has grown so large that it should be
+	 * merged to the index file.
+	 */
+	public boolean needsCheckpoint() {
+		try {
+			return log != null && log.size() > CHECKPOINT_LOG_SIZE;
+		} catch(IOException exception) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write the changes to a new segment of the index and empty the
+	 * log. Only the changed words are written, the compaction merges
+	 * the segments later.
+	 * @param changes All the words that are changed after the previous checkpoint
+	 * @return The new index or null if nothing was written
+	 */
+	public synchronized IndexTable checkpoint(SortedMap<String, WordEntryIO> changes) {
+		List<IndexTable> segments;
+		List<Long> numbers;
+		IndexTable segment;
+		long number;
+
+		if(index == null || table == null) {
+			return null;
+		}
+
+		try {
+			if(!changedEntries.isEmpty() || !changes.isEmpty()) {
+				countGarbage(changes);
 				pushChanges();
-				index.writeIndex(map);
+				dataStore.getChannel().force(false);
+
+				number = manifest.nextSegment();
+				segment = index.writeSegment(manifest.getSegmentFile(number), changes.entrySet().iterator());
+
+				numbers = new ArrayList<Long>(manifest.getSegments());
+				numbers.add(number);
+				manifest.write(numbers);
+
+				/* the log is replayed again, if the program crashes before this */
+				log.reset();
+
+				segments = new ArrayList<IndexTable>();
+				segments.add(segment);
+				segments.addAll(table.getSegments());
+				table = new SegmentedIndex(table.getBase(), segments, generation);
+				return table;
 			}
 		} catch(IOException exception) {
+			System.out.println("DB: failed to write the changes " + exception);
 		}
+		return null;
 	}
 
+	/**
+	 * Add the records that the changes replace to the unused part of
+	 * the data store. The records that were written and replaced
+	 * between two checkpoints aren't counted, so this is an estimate.
+	 */
+	private void countGarbage(SortedMap<String, WordEntryIO> changes) throws IOException {
+		for(Map.Entry<String, WordEntryIO> change : changes.entrySet()) {
+			IndexTable.Cursor cursor = table.find(change.getKey());
+
+			if(cursor != null && cursor.getAddress() != change.getValue().address) {
+				garbageSize += 4 + readRecordSize(cursor.getAddress());
+			}
+		}
+	}
+
+	private int readRecordSize(long address) throws IOException {
+		MappedFile mapped = mappedStore;
+
+		if(mapped != null && address + 4 <= mapped.length()) {
+			return mapped.getInt(address);
+		}
+		return readFully(ByteBuffer.allocate(4), address).getInt();
+	}
+
+	/**
+	 * Check if so much of the data store isn't used anymore
+	 * that it should be compacted.
+	 */
+	public synchronized boolean needsCompaction() {
+		try {
+			return dataStore != null && garbageSize >= MIN_GARBAGE_SIZE &&
+			       garbageSize * GARBAGE_RATIO >= dataStore.length();
+		} catch(IOException exception) {
+			return false;
+		}
+	}
+
+	/**
+	 * Copy the records that the index uses to a new data store in
+	 * the order of the words and replace the data store with it.
+	 * The log must be empty, so the caller makes a checkpoint first.
+	 *
+	 * The new index is written to the index file that isn't used,
+	 * and the new data store is renamed over the old one, so after
+	 * a crash there is either the old data store with the old index
+	 * or the new data store with the new index. The reads that are
+	 * running are finished before the data store is replaced.
+	 *
+	 * @return The new index or null if the index wasn't changed
+	 */
+	public synchronized IndexTable compactDataStore() {
+		SegmentedIndex old, result;
+		RandomAccessFile newStore;
+		MappedFile newMapped;
+		File compacted, indexFile;
+		IndexTable base;
+		long newDictionary, length;
+
+		if(index == null || table == null || dataStore == null) {
+			return null;
+		}
+
+		result = null;
+		try {
+			if(bulkLoading || !log.isEmpty()) {
+				System.out.println("DB: the data store has records that aren't in the index yet");
+				return null;
+			}
+
+			/* the new index has all the words in one file */
+			if(!table.getSegments().isEmpty()) {
+				old = table;
+				table = replaceSegments(index.writeIndex(old, Collections.<Map.Entry<String, WordEntryIO>>emptyIterator()));
+				old.closeAll();
+				result = table;
+			}
+
+			length = dataStore.length();
+			compacted = new File(dataStoreFile.getPath() + ".compact");
+			indexFile = index.getNextIndexFile();
+			newDictionary = (dictionaryAddress != 0) ? getFirstRecordAddress() : 0;
+
+			System.out.println("DB: compact the data store to " + compacted);
+			base = copyRecords(compacted, indexFile, newDictionary);
+
+			/* the opened file follows the rename */
+			newStore = new RandomAccessFile(compacted, "rw");
+			newMapped = (mappedStore != null) ? new MappedFile(newStore.getChannel()) : null;
+			Files.move(compacted.toPath(), dataStoreFile.toPath(),
+			           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			old = table;
+			storeLock.writeLock().lock();
+			try {
+				RandomAccessFile oldStore = dataStore;
+
+				dataStore = newStore;
+				mappedStore = newMapped;
+				dictionaryAddress = newDictionary;
+				index.setIndexFile(indexFile);
+
+				generation++;
+				table = new SegmentedIndex(base, new ArrayList<IndexTable>(), generation);
+				pages.clear();
+				records.clear();
+				garbageSize = 0;
+
+				oldStore.close();
+			} finally {
+				storeLock.writeLock().unlock();
+			}
+			old.closeAll();
+			result = table;
+
+			System.out.println("DB: compacted the data store from " + length + " to " +
+			                   dataStore.length() + " bytes");
+		} catch(IOException exception) {
+			System.out.println("DB: failed to compact the data store " + exception);
+		}
+		return result;
+	}
+
+	/**
+	 * Write the new data store with the records of the words that are
+	 * in the index, and the index of the new data store.
+	 * @param file The new data store
+	 * @param indexFile The file of the new index
+	 * @param dictionary The address of the dictionary in the new data store
+	 * @return The new index
+	 */
+	private IndexTable copyRecords(File file, File indexFile, long dictionary) throws IOException {
+		IndexIO.BlockWriter writer;
+		IndexTable.Cursor cursor;
+		FileOutputStream output;
+		DataOutputStream stream;
+		long position;
+
+		output = new FileOutputStream(file, false);
+		stream = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+		writer = index.startIndex(indexFile);
+		try {
+			writeDataStoreHeader(stream, indexFile.toString(), dictionary);
+			position = getFirstRecordAddress();
+
+			/* the records are copied as they are, so the
+			 * compressed records need the same dictionary */
+			if(dictionary != 0) {
+				position += copyRecord(stream, dictionaryAddress);
+			}
+
+			/* the words that are near each other in the index
+			 * are also near each other in the data store */
+			for(cursor = table.seek(""); cursor.isValid(); cursor.next()) {
+				writer.write(cursor.getWord(), cursor.getDescription(), position);
+				position += copyRecord(stream, cursor.getAddress());
+			}
+			stream.flush();
+			output.getChannel().force(true);
+		} catch(IOException exception) {
+			writer.close();
+			throw exception;
+		} finally {
+			stream.close();
+		}
+		return index.finishIndex(writer);
+	}
+
+	/**
+	 * Copy a record with its length.
+	 * @return The number of the bytes written
+	 */
+	private int copyRecord(DataOutputStream stream, long address) throws IOException {
+		ByteBuffer record = readRecord(address);
+		byte[] buffer = new byte[record.remaining()];
+
+		record.get(buffer);
+		stream.writeInt(buffer.length);
+		stream.write(buffer);
+		return 4 + buffer.length;
+	}
+
+	/**
+	 * Merge the segments when there are too many of them. The segments
+	 * are merged to the base index when they are large compared to it,
+	 * otherwise only the segments are merged together.
+	 * @return The new index or null if nothing was merged
+	 */
+	public synchronized IndexTable compact() {
+		SegmentedIndex old, newTable;
+		List<IndexTable> merged;
+		List<Long> numbers;
+		long segmentSize;
+
+		if(table == null || table.getSegments().size() < MAX_SEGMENTS) {
+			return null;
+		}
+		old = table;
+		numbers = new ArrayList<Long>(manifest.getSegments());
+		segmentSize = old.segmentEntryCount();
+
+		try {
+			if(segmentSize * SEGMENT_RATIO >= old.getBase().size()) {
+				System.out.println("DB: merge the segments to the index");
+				newTable = replaceSegments(index.writeIndex(old, Collections.<Map.Entry<String, WordEntryIO>>emptyIterator()));
+				dataStore.getChannel().force(false);
+				old.getBase().close();
+			} else {
+				long number = manifest.nextSegment();
+
+				System.out.println("DB: merge the segments");
+				merged = new ArrayList<IndexTable>();
+				merged.add(index.writeSegment(manifest.getSegmentFile(number),
+				                              new SegmentedIndex(IndexTable.empty(), old.getSegments(), generation).changes()));
+				manifest.write(Collections.singletonList(number));
+				manifest.delete(numbers);
+				newTable = new SegmentedIndex(old.getBase(), merged, generation);
+			}
+		} catch(IOException exception) {
+			System.out.println("DB: failed to merge the segments " + exception);
+			return null;
+		}
+
+		/* the searches that are running still have the mapping */
+		for(IndexTable segment : old.getSegments()) {
+			segment.close();
+		}
+		table = newTable;
+		return table;
+	}
+
+	/**
+	 * Append the records of the words that are bulk loaded. The words
+	 * aren't marked as changed and they aren't written to the log,
+	 * so they are found only after the index is written with
+	 * writeBulkIndex.
+	 * @param entries The new words
+	 */
+	public synchronized void writeBulk(List<WordEntryIO> entries) throws IOException {
+		if(dataStore == null) {
+			throw new IOException("The data store isn't open.");
+		}
+		bulkLoading = true;
+		writeEntries(entries);
+	}
+
+	/**
+	 * Forget the records of the bulk load that was stopped.
+	 */
+	public synchronized void cancelBulk() {
+		bulkLoading = false;
+	}
+
+	/**
+	 * Write the index that has the bulk loaded words. The segments are
+	 * merged to the same index. The log isn't emptied, because the
+	 * changes in the log aren't in the index.
+	 * @param words The bulk loaded words in the sorted order
+	 * @return The new index
+	 */
+	public synchronized IndexTable writeBulkIndex(Iterator<Map.Entry<String, WordEntryIO>> words) throws IOException {
+		SegmentedIndex old;
+
+		if(index == null || table == null) {
+			throw new IOException("The index isn't open.");
+		}
+		old = table;
+		dataStore.getChannel().force(false);
+		table = replaceSegments(index.writeIndex(old, words));
+		dataStore.getChannel().force(false);
+		bulkLoading = false;
+
+		old.closeAll();
+		return table;
+	}
 
 	/**
 	 * Write all words that are marked as modified to the data store.
 	 */
 	private void pushChanges() throws IOException {
+		List<WordEntryIO> entries;
+
 		if(dataStore == null) {
 			return;
 		}
 
 		System.out.println("DB: push changes");
 
-		/* skip to the end of file */
-		dataStore.seek(dataStore.length());
-
-		/* block access to changedEntries list from every other thread */
+		/* take the changed words, so that other threads can
+		 * mark words as changed while these are written */
 		synchronized(changedEntries) {
-			Iterator<WordEntryIO> iter = changedEntries.iterator();
+			entries = new ArrayList<WordEntryIO>(changedEntries);
+			changedEntries.clear();
+		}
+
+		try {
+			writeEntries(entries);
+		} catch(IOException exception) {
+			/* the words that weren't written are still modified
+			 * and they are written again by the next push */
+			changedEntries.addAll(entries.subList(flushedEntries, entries.size()));
+			throw exception;
+		}
+	}
+
+	/**
+	 * Write the words to the end of the data store. The
+	 * entries get the addresses of their records.
+	 */
+	private void writeEntries(List<WordEntryIO> entries) throws IOException {
+		/* the records are appended to the end of file */
+		appendPosition = dataStore.length();
+		flushedEntries = 0;
+
+		try {
+			if(compression && compressor.getDictionary() == null &&
+			   entries.size() >= MIN_DICTIONARY_SAMPLES) {
+				writeDictionary(entries);
+			}
+
+			for(WordEntryIO entry : entries) {
+				writeWord(entry);
+			}
+			flushRecords();
+
+			/* the sources and the shared trees are on the disk
+			 * before the pages are logged */
+			if(coldSource) {
+				sources.force();
+			}
+			if(sharedSubtrees) {
+				subtrees.force();
+			}
+		} finally {
+			/* the words that weren't written keep their old records */
+			writeBuffer.clear();
+			bufferedEntries.clear();
+		}
+
+		if(mappedStore != null) {
+			mappedStore.remap();
+		}
+	}
+
+	/**
+	 * Train the compression dictionary from the words that
+	 * are going to be written.
+	 */
+	private void writeDictionary(List<WordEntryIO> entries) throws IOException {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		byte[] dictionary;
 
-			while(iter.hasNext()) {
-				writeWord(iter.next());
-				iter.remove();
+		for(WordEntryIO entry : entries) {
+			if(samples.size() == MAX_DICTIONARY_SAMPLES) {
+				break;
 			}
+			samples.add(entry.getData(!coldSource));
 		}
+
+		dictionary = RecordCompressor.train(samples);
+		if(dictionary == null) {
+			return;
+		}
+		System.out.println("DB: write compression dictionary of " + dictionary.length + " bytes");
+
+		dictionaryAddress = appendPosition;
+		putRecord(dictionary, RECORD_DICTIONARY);
+		flushRecords();
+
+		/* the header must point to the dictionary before any record uses it */
+		writeFully((ByteBuffer)ByteBuffer.allocate(8).putLong(dictionaryAddress).flip(), DICTIONARY_POSITION);
+
+		compressor = new RecordCompressor(dictionary);
 	}
 
 	private void writeWord(WordEntryIO entry) throws IOException {
-		byte[] buffer;
+		int flags = 0;
+
+		/* the source goes to the source store first, unless
+		 * the word still has its old source there */
+		if(coldSource) {
+			long kept = entry.keptSource;
 
-		/* get the data from the data structures */
-		buffer = entry.getData();
+			if(kept >= 0) {
+				entry.sourceAddress = kept;
+			} else {
+				String source = entry.data.getSource();
 
-		/* save the new location of the word */
-		entry.address = dataStore.getFilePointer();
-		entry.setModified(false);
+				entry.sourceAddress = (source != null) ? sources.write(source) : -1;
+			}
+			flags = RECORD_COLD_SOURCE;
+		}
+
+		/* the entry gets the new location only after the record
+		 * is written, so a failed write leaves the old one */
+		entry.bufferedAddress = appendPosition + writeBuffer.position();
+		synchronized(entry) {
+			entry.bufferedChanges = entry.changes;
+		}
 
-		/* write data to the file */
-		dataStore.writeInt(buffer.length);
-		dataStore.write(buffer);
+		/* the page is dropped from the entry only
+		 * after the record is written to the file */
+		encodeRecord(entry, flags);
+		bufferedEntries.add(entry);
+		if(writeBuffer.position() >= WRITE_BUFFER_SIZE) {
+			flushRecords();
+		}
+	}
+
+	/**
+	 * Encode the record of the word straight to the write buffer. The
+	 * record is copied only when it is compressed.
+	 */
+	private void encodeRecord(WordEntryIO entry, int flags) {
+		int start, bodyStart, length;
+		byte[] compressed, raw;
+
+		start = writeBuffer.position();
+		bodyStart = start + ((version == LEGACY_VERSION) ? 4 : 5);
+		writeBuffer.position(bodyStart);
+		entry.encode(writeBuffer, !coldSource, sharedSubtrees ? subtrees : null);
+		length = writeBuffer.position() - bodyStart;
+
+		if(version == LEGACY_VERSION) {
+			writeBuffer.putInt(start, length);
+			return;
+		}
+
+		if(compression) {
+			raw = writeBuffer.toByteArray(bodyStart, bodyStart + length);
+			compressed = compressor.compress(raw);
+			if(compressed != null) {
+				writeBuffer.position(start);
+				putCompressedRecord(raw.length, compressed, flags);
+				return;
+			}
+		}
+		writeBuffer.putInt(start, 1 + length);
+		writeBuffer.putByte(start + 4, flags);
+	}
+
+	/**
+	 * Add the record to the write buffer.
+	 */
+	private void putRecord(byte[] buffer, int flags) {
+		byte[] compressed;
+
+		if(version == LEGACY_VERSION) {
+			writeBuffer.putInt(buffer.length);
+			writeBuffer.putBytes(buffer, 0, buffer.length);
+			return;
+		}
+
+		compressed = null;
+		if(compression && (flags & RECORD_DICTIONARY) == 0) {
+			compressed = compressor.compress(buffer);
+		}
+
+		if(compressed != null) {
+			putCompressedRecord(buffer.length, compressed, flags);
+		} else {
+			writeBuffer.putInt(1 + buffer.length);
+			writeBuffer.putByte(flags);
+			writeBuffer.putBytes(buffer, 0, buffer.length);
+		}
+	}
+
+	private void putCompressedRecord(int rawLength, byte[] compressed, int flags) {
+		writeBuffer.putInt(1 + VarInt.size(rawLength) + compressed.length);
+		writeBuffer.putByte(flags | RECORD_COMPRESSED);
+		writeBuffer.putVarInt(rawLength);
+		writeBuffer.putBytes(compressed, 0, compressed.length);
+	}
+
+	/**
+	 * Write the records in the write buffer to the end of the data
+	 * store. The words get their records after this.
+	 */
+	private void flushRecords() throws IOException {
+		ByteBuffer records = writeBuffer.view();
+		int length = records.remaining();
+
+		writeFully(records, appendPosition);
+		appendPosition += length;
+		writeBuffer.clear();
+
+		for(WordEntryIO entry : bufferedEntries) {
+			synchronized(entry) {
+				entry.address = entry.bufferedAddress;
+				entry.generation = generation;
+				entry.store = this;
+
+				/* the word that was changed after it was encoded
+				 * keeps its page and is written again */
+				if(entry.changes == entry.bufferedChanges) {
+					entry.setModified(false);
+				} else if(entry.isModified()) {
+					changedEntries.add(entry);
+				}
+			}
+		}
+		flushedEntries += bufferedEntries.size();
+		bufferedEntries.clear();
 	}
 }
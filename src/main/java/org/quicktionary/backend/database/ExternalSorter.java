@@ -0,0 +1,289 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.EOFException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.quicktionary.backend.WordEntry;
+
+/**
+ * Sorts the words and the addresses of their records, when there
+ * are too many of them to be kept in the memory. The words are
+ * collected to a list, and the full lists are sorted and written
+ * to the run files. At the end the runs are merged.
+ *
+ * If the same word is added again, the latest address is kept.
+ */
+class ExternalSorter {
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	private File directory;
+	private int runSize;
+
+	private List<Item> items;
+	private List<File> runs;
+	private List<Run> readers;
+
+	/**
+	 * The word with the order in which it was added.
+	 */
+	private final static class Item {
+		private final String word;
+		private final String description;
+		private final long address;
+		private final int run;
+
+		private Item(String word, String description, long address, int run) {
+			this.word = word;
+			this.description = description;
+			this.address = address;
+			this.run = run;
+		}
+	}
+
+	private final static Comparator<Item> ORDER = new Comparator<Item>() {
+		public int compare(Item a, Item b) {
+			int order = a.word.compareTo(b.word);
+
+			if(order != 0) {
+				return order;
+			}
+			return (a.run < b.run) ? -1 : ((a.run == b.run) ? 0 : 1);
+		}
+	};
+
+	/**
+	 * @param directory The directory for the run files
+	 * @param runSize The number of the words that are kept in the memory
+	 */
+	public ExternalSorter(File directory, int runSize) {
+		this.directory = directory;
+		this.runSize = runSize;
+		this.items = new ArrayList<Item>();
+		this.runs = new ArrayList<File>();
+		this.readers = new ArrayList<Run>();
+	}
+
+	public void add(String word, String description, long address) throws IOException {
+		items.add(new Item(word, description, address, runs.size()));
+		if(items.size() >= runSize) {
+			spill();
+		}
+	}
+
+	/**
+	 * Sort the words in the memory and write them to a new run file.
+	 */
+	private void spill() throws IOException {
+		DataOutputStream stream;
+		File file;
+
+		/* the sort is stable, so the later words stay later */
+		Collections.sort(items, ORDER);
+
+		file = File.createTempFile("sort", ".run", directory);
+		runs.add(file);
+		stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		try {
+			for(Item item : items) {
+				writeString(stream, item.word);
+				writeString(stream, item.description);
+				stream.writeLong(item.address);
+			}
+		} finally {
+			stream.close();
+		}
+		items.clear();
+	}
+
+	private void writeString(DataOutputStream stream, String string) throws IOException {
+		byte[] buffer;
+
+		if(string == null) {
+			stream.writeInt(-1);
+			return;
+		}
+		buffer = string.getBytes("UTF-8");
+		stream.writeInt(buffer.length);
+		stream.write(buffer);
+	}
+
+	private static String readString(DataInputStream stream) throws IOException {
+		byte[] buffer;
+		int length;
+
+		length = stream.readInt();
+		if(length < 0) {
+			return null;
+		}
+		buffer = new byte[length];
+		stream.readFully(buffer);
+		return new String(buffer, "UTF-8");
+	}
+
+	/**
+	 * Get all the words in the sorted order. The words are given as
+	 * entries that have only the description and the address, so
+	 * they can be merged to the index like the changed words.
+	 */
+	public Iterator<Map.Entry<String, WordEntryIO>> sorted() throws IOException {
+		final PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size() + 1), new Comparator<Run>() {
+			public int compare(Run a, Run b) {
+				return ORDER.compare(a.current, b.current);
+			}
+		});
+
+		/* the words in the memory are the last run */
+		if(!items.isEmpty()) {
+			Collections.sort(items, ORDER);
+		}
+		readers.add(new Run(items.iterator()));
+		for(int i = 0; i < runs.size(); i++) {
+			readers.add(new Run(runs.get(i), i));
+		}
+		for(Run run : readers) {
+			if(run.next()) {
+				queue.add(run);
+			}
+		}
+
+		return new Iterator<Map.Entry<String, WordEntryIO>>() {
+			public boolean hasNext() {
+				return !queue.isEmpty();
+			}
+
+			public Map.Entry<String, WordEntryIO> next() {
+				Item item;
+				WordEntry entry;
+
+				if(queue.isEmpty()) {
+					throw new NoSuchElementException();
+				}
+
+				/* the same word from the later runs replaces the word */
+				item = take(queue);
+				while(!queue.isEmpty() && queue.peek().current.word.equals(item.word)) {
+					item = take(queue);
+				}
+
+				entry = new WordEntry(item.word);
+				entry.setDescription(item.description);
+				return new AbstractMap.SimpleImmutableEntry<String, WordEntryIO>(
+					item.word, new WordEntryIO(entry, item.address));
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static Item take(PriorityQueue<Run> queue) {
+		Run run = queue.poll();
+		Item item = run.current;
+
+		if(run.next()) {
+			queue.add(run);
+		}
+		return item;
+	}
+
+	/**
+	 * Remove the run files.
+	 */
+	public void close() {
+		for(Run run : readers) {
+			run.close();
+		}
+		for(File file : runs) {
+			file.delete();
+		}
+		readers.clear();
+		runs.clear();
+		items.clear();
+	}
+
+	/**
+	 * Reads the words of one run in the sorted order.
+	 */
+	private final static class Run {
+		private Iterator<Item> iter;
+		private DataInputStream stream;
+		private int index;
+		private Item current;
+
+		private Run(Iterator<Item> iter) {
+			this.iter = iter;
+			this.index = Integer.MAX_VALUE;
+		}
+
+		private Run(File file, int index) throws IOException {
+			this.index = index;
+			this.stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		}
+
+		private boolean next() {
+			if(iter != null) {
+				current = iter.hasNext() ? iter.next() : null;
+				return current != null;
+			}
+
+			try {
+				String word = readString(stream);
+				String description = readString(stream);
+				long address = stream.readLong();
+
+				current = new Item(word, description, address, index);
+				return true;
+			} catch(EOFException exception) {
+			} catch(IOException exception) {
+				throw new Error("The sorted words couldn't be read.", exception);
+			}
+			current = null;
+			close();
+			return false;
+		}
+
+		private void close() {
+			if(stream == null) {
+				return;
+			}
+			try {
+				stream.close();
+			} catch(IOException exception) {
+			}
+			stream = null;
+		}
+	}
+}
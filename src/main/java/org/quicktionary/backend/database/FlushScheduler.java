@@ -0,0 +1,155 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+/**
+ * Syncs the database in a background thread. The sync is started
+ * when the number or the estimated size of the changed words grows
+ * over the limit, or when the oldest change gets too old.
+ *
+ * If the changes come much faster than they are written, the thread
+ * that makes the changes has to wait, so the memory use stays bounded.
+ */
+class FlushScheduler implements Runnable {
+	private WordDatabase database;
+	private int maxCount;
+	private long maxBytes;
+	private long interval;
+
+	private int count;
+	private long bytes;
+	private long firstChange;
+
+	private Thread thread;
+	private boolean flushing;
+	private boolean closed;
+
+	/**
+	 * @param database The database that is synced
+	 * @param maxCount The number of changed words that starts the sync
+	 * @param maxBytes The estimated size of the changes that starts the sync
+	 * @param interval The time in milliseconds that a change may wait
+	 */
+	public FlushScheduler(WordDatabase database, int maxCount, long maxBytes, long interval) {
+		this.database = database;
+		this.maxCount = maxCount;
+		this.maxBytes = maxBytes;
+		this.interval = interval;
+		this.thread = null;
+		this.closed = false;
+	}
+
+	/**
+	 * Tell that a word was changed. This must not be called while
+	 * holding the lock of the database, because the caller may
+	 * have to wait for the sync.
+	 *
+	 * @param size The estimated size of the change in bytes
+	 */
+	public synchronized void changed(long size) {
+		if(closed) {
+			return;
+		}
+		if(thread == null) {
+			thread = new Thread(this, "Database flush");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		if(count == 0) {
+			firstChange = System.currentTimeMillis();
+		}
+		count++;
+		bytes += size;
+
+		if(isDue(firstChange)) {
+			notifyAll();
+		}
+
+		/* wait for the sync, if the changes are piling up to twice the limit */
+		while(!closed && (count - maxCount >= maxCount || bytes - maxBytes >= maxBytes)) {
+			try {
+				wait();
+			} catch(InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private boolean isDue(long now) {
+		if(count == 0 || flushing) {
+			return false;
+		}
+		return count >= maxCount || bytes >= maxBytes || now - firstChange >= interval;
+	}
+
+	public void run() {
+		while(true) {
+			synchronized(this) {
+				flushing = false;
+				notifyAll();
+
+				while(!closed && !isDue(System.currentTimeMillis())) {
+					long timeout = 0;
+
+					if(count > 0 && interval < Long.MAX_VALUE - firstChange) {
+						timeout = Math.max(1, firstChange + interval - System.currentTimeMillis());
+					}
+					try {
+						wait(timeout);
+					} catch(InterruptedException exception) {
+						return;
+					}
+				}
+				if(closed) {
+					return;
+				}
+
+				/* the changes after this are counted for the next sync */
+				flushing = true;
+				count = 0;
+				bytes = 0;
+				notifyAll();
+			}
+			database.sync();
+		}
+	}
+
+	/**
+	 * Stop the thread. The changes that are left
+	 * have to be synced by the caller.
+	 */
+	public void close() {
+		Thread running;
+
+		synchronized(this) {
+			closed = true;
+			running = thread;
+			notifyAll();
+		}
+
+		if(running == null || running == Thread.currentThread()) {
+			return;
+		}
+		try {
+			running.join();
+		} catch(InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
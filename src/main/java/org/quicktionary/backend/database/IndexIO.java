@@ -20,179 +20,395 @@ import java.lang.String;
 import java.io.File;
 import java.io.IOException;
 import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.DataInputStream;
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
-import java.util.Set;
-import java.util.AbstractSet;
 import java.util.Map;
-import java.util.AbstractMap;
 import java.util.TreeMap;
 import java.util.SortedMap;
 import java.util.Iterator;
-import java.util.Comparator;
-import java.io.UnsupportedEncodingException;
-import java.lang.UnsupportedOperationException;
-
-import org.quicktionary.backend.WordEntry;
+import java.util.Arrays;
 
 class IndexIO {
-	private final static byte[] INDEX_HEADER_SIGNATURE = {'I', 'D', 'B', 0};
+	private final static byte[] INDEX_HEADER_SIGNATURE = {'I', 'D', 'B', 2};
+	private final static byte[] LEGACY_HEADER_SIGNATURE = {'I', 'D', 'B', 0};
 
 	private DataStoreIO io;
 	private File indexFile;
+	private boolean mapped;
+	private boolean perfectHash;
 
-	private final class SortedArray<K, V> extends AbstractMap<K, V> implements SortedMap<K, V> {
-		private Map.Entry<K,V>[] entries;
+	public IndexIO(DataStoreIO io, File indexFile) {
+		this.io = io;
+		this.indexFile = indexFile;
+		this.mapped = true;
+		this.perfectHash = true;
+	}
 
-		public SortedArray(Map.Entry<K,V>[] entries) {
-			this.entries = entries;
-		}
+	/**
+	 * Choose if the index files are memory mapped or read to the memory.
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
 
-		private final class SortedSet extends AbstractSet<Map.Entry<K, V>>  {
-			private final class SortedIterator implements Iterator<Map.Entry<K, V>> {
-				private int index;
-				public boolean hasNext() {
-					return index == entries.length - 1;
-				}
-				public Map.Entry<K, V> next() {
-					return entries[index++];
-				}
-				public void remove() {
-					throw new UnsupportedOperationException();
-				}
-			}
-			public boolean add(Map.Entry<K, V> e) {
-				throw new UnsupportedOperationException();
-			}
-			public boolean contains(Object o) {
-				return SortedArray.this.containsValue(o);
-			}
-			public boolean isEmpty() {
-				return SortedArray.this.isEmpty();
-			}
-			public Iterator<Map.Entry<K, V>> iterator() {
-				return new SortedIterator();
-			}
-			public Object[] toArray() {
-				return entries;
-			}
-			public int size() {
-				return entries.length;
-			}
-		}
+	/**
+	 * Choose if the index files that are written have the perfect
+	 * hash of the words for the exact lookups.
+	 */
+	public void setPerfectHash(boolean enabled) {
+		this.perfectHash = enabled;
+	}
 
-		public Comparator<K> comparator() {
+	/**
+	 * Open the current index file again.
+	 * @return The index or null if the index file isn't written yet
+	 */
+	public IndexTable reopenIndex() throws IOException {
+		if(!indexFile.exists()) {
 			return null;
 		}
-		public Set<Map.Entry<K, V>> entrySet() {
-			return new SortedSet();
-		}
-		public K firstKey() {
-			return entries[0].getKey();
-		}
-		public K lastKey() {
-			return entries[entries.length - 1].getKey();
-		}
-		public SortedMap<K,V> headMap(K toKey) {
-			throw new Error("Unimplemented");
-		}
-		public SortedMap<K,V> tailMap(K fromKey) {
-			throw new Error("Unimplemented");
-		}
-		public SortedMap<K,V> subMap(K fromKey, K toKey) {
-			throw new Error("Unimplemented");
-		}
+		return openIndex(indexFile);
 	}
 
-	public IndexIO(DataStoreIO io, File indexFile) {
-		this.io = io;
-		this.indexFile = indexFile;
+	private IndexTable openIndex(File file) throws IOException {
+		if(mapped) {
+			return MappedIndex.open(file);
+		}
+		return PackedIndex.load(file);
 	}
 
 	/**
-	 * Read the index of the database.
+	 * Open the index of the database. When the index is memory mapped
+	 * only the words that are actually used are read from the file.
+	 * The index files of the older format are converted to the
+	 * current format.
 	 */
-	public TreeMap<String, WordEntryIO> readIndex() throws IOException {
+	public IndexTable readIndex() throws IOException {
 		byte[] signature = new byte[INDEX_HEADER_SIGNATURE.length];
 		DataInputStream stream;
-		TreeMap<String, WordEntryIO> map;
+		IndexTable legacy;
 
 		System.out.println("DB: read the index at " + indexFile);
 
 		try {
-			stream = new DataInputStream(new FileInputStream(indexFile));
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
 		} catch(IOException exception) {
 			System.out.println("Failed to open the file " + exception);
 			return null;
 		}
 
-		map = null;
-		try {
-			/* check the file signature */
-			stream.read(signature);
-			if(INDEX_HEADER_SIGNATURE.equals(signature)) {
-				stream.close();
-				throw new Error("This file is not database index.");
-			}
+		/* check the file signature */
+		stream.readFully(signature);
+		if(Arrays.equals(INDEX_HEADER_SIGNATURE, signature)) {
+			stream.close();
+			return openIndex(indexFile);
+		}
+		if(!Arrays.equals(LEGACY_HEADER_SIGNATURE, signature)) {
+			stream.close();
+			throw new Error("This file is not database index.");
+		}
 
-			/* read the data and put it into TreeMap */
-			map = new TreeMap<String, WordEntryIO>(readSortedList(stream));
-		} catch(UnsupportedEncodingException exception) {
+		legacy = null;
+		try {
+			legacy = readSortedList(stream);
 		} catch(IOException exception) {
 		}
-
 		stream.close();
-		return map;
+
+		if(legacy == null) {
+			return null;
+		}
+
+		System.out.println("DB: convert the index to the new format");
+		return writeIndex(legacy, new TreeMap<String, WordEntryIO>());
+	}
+
+	/**
+	 * Write the index of the database to another file. The words of the
+	 * old index and the changed words are merged into the new file.
+	 *
+	 * @param table The current index
+	 * @param changes The new and removed words
+	 * @return The new index
+	 */
+	public IndexTable writeIndex(IndexTable table, SortedMap<String, WordEntryIO> changes) throws IOException {
+		return writeIndex(table, changes.entrySet().iterator());
 	}
 
 	/**
 	 * Write the index of the database to another file.
+	 *
+	 * @param table The current index
+	 * @param changes The new and removed words in the sorted order
+	 * @return The new index
+	 */
+	public IndexTable writeIndex(IndexTable table, Iterator<Map.Entry<String, WordEntryIO>> changes) throws IOException {
+		BlockWriter writer;
+		File file;
+
+		file = getNextIndexFile();
+		writer = createWriter(file);
+		try {
+			writeSortedList(writer, table, changes);
+		} catch(IOException exception) {
+			writer.close();
+			throw exception;
+		}
+		finishWriter(writer);
+
+		io.writeDataStoreHeader(file.toString());
+		indexFile = file;
+
+		return openIndex(indexFile);
+	}
+
+	public File getIndexFile() {
+		return indexFile;
+	}
+
+	/**
+	 * Get the file where the next index is written. The index files
+	 * are used in turn, so the current one is never overwritten.
 	 */
-	public void writeIndex(TreeMap<String, WordEntryIO> map) throws IOException {
-		DataOutputStream stream;
-		String filename, oldFilename;
+	public File getNextIndexFile() {
+		String oldFilename = indexFile.toString();
 
-		/* create filename for the new index file */
-		oldFilename = indexFile.toString();
 		if(oldFilename.charAt(oldFilename.length() - 1) == '2') {
-			filename = oldFilename.substring(0, oldFilename.length() - 1);
-		} else {
-			filename = oldFilename + "2";
+			return new File(oldFilename.substring(0, oldFilename.length() - 1));
+		}
+		return new File(oldFilename + "2");
+	}
+
+	/**
+	 * Start writing the index of a new data store. The words have
+	 * to be written in the sorted order, and the data store header
+	 * isn't touched.
+	 * @param file The file from getNextIndexFile
+	 * @return The writer that is given to finishIndex
+	 */
+	public BlockWriter startIndex(File file) throws IOException {
+		return createWriter(file);
+	}
+
+	/**
+	 * Finish the index that was started with startIndex.
+	 * @return The new index
+	 */
+	public IndexTable finishIndex(BlockWriter writer) throws IOException {
+		finishWriter(writer);
+		return openIndex(writer.target);
+	}
+
+	/**
+	 * Use the given index file, when the data store that points to
+	 * it has replaced the old one.
+	 */
+	public void setIndexFile(File file) {
+		indexFile = file;
+	}
+
+	/**
+	 * Write the changes to a segment file. The removed words are
+	 * written with the address -1, so they hide the older words.
+	 *
+	 * @param file The segment file
+	 * @param changes The new and removed words in the sorted order
+	 * @return The segment
+	 */
+	public IndexTable writeSegment(File file, Iterator<Map.Entry<String, WordEntryIO>> changes) throws IOException {
+		BlockWriter writer;
+
+		writer = createWriter(file);
+		try {
+			while(changes.hasNext()) {
+				Map.Entry<String, WordEntryIO> change = changes.next();
+				WordEntryIO entry = change.getValue();
+
+				if(entry == WordEntryIO.REMOVED) {
+					writer.write(change.getKey(), null, SegmentedIndex.REMOVED_ADDRESS);
+				} else {
+					writer.write(change.getKey(), entry.data.getDescription(), entry.address);
+				}
+			}
+		} catch(IOException exception) {
+			writer.close();
+			throw exception;
 		}
-		System.out.println("DB: write temporary index at " + filename);
+		finishWriter(writer);
+
+		return openIndex(file);
+	}
+
+	/**
+	 * Open a segment that was written earlier.
+	 */
+	public IndexTable openSegment(File file) throws IOException {
+		return openIndex(file);
+	}
+
+	/**
+	 * Start writing an index file. The file is written under another
+	 * name and renamed, because the old file of the same name may
+	 * still be memory mapped.
+	 */
+	private BlockWriter createWriter(File target) throws IOException {
+		File temporary = new File(target.getPath() + ".tmp");
+
+		System.out.println("DB: write temporary index at " + temporary);
+		return new BlockWriter(new FileOutputStream(temporary, false), temporary, target, perfectHash);
+	}
+
+	private void finishWriter(BlockWriter writer) throws IOException {
+		ByteBuffer header;
 
-		stream = null;
 		try {
-			stream = new DataOutputStream(new FileOutputStream(filename, false));
-			/* write the file signature */
+			writer.finish();
+
+			/* fill the header */
+			header = ByteBuffer.allocate(MappedIndex.HEADER_SIZE - 4);
+			header.putInt(writer.count);
+			header.putInt(MappedIndex.RESTART_INTERVAL);
+			header.putLong(writer.restartTable);
+			header.flip();
+			writer.file.getChannel().write(header, 4);
+			writer.file.getChannel().force(true);
+		} finally {
+			writer.close();
+		}
+		Files.move(writer.temporary.toPath(), writer.target.toPath(),
+		           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes the words to the blocks of the index file.
+	 */
+	final static class BlockWriter {
+		private FileOutputStream file;
+		private File temporary, target;
+		private DataOutputStream stream;
+		private long position;
+		private int count;
+		private long restartTable;
+
+		private byte[] previous;
+		private long previousAddress;
+		private long[] restarts;
+		private long[] hashes;
+
+		/**
+		 * @param perfectHash True if the perfect hash is written after the restart table
+		 */
+		public BlockWriter(FileOutputStream file, File temporary, File target, boolean perfectHash) throws IOException {
+			this.file = file;
+			this.temporary = temporary;
+			this.target = target;
+			this.stream = new DataOutputStream(new BufferedOutputStream(file));
+			this.previous = new byte[0];
+			this.restarts = new long[64];
+			this.hashes = perfectHash ? new long[64] : null;
+
+			/* write the file signature and space for the header */
 			stream.write(INDEX_HEADER_SIGNATURE);
+			stream.write(new byte[MappedIndex.HEADER_SIZE - INDEX_HEADER_SIGNATURE.length]);
+			position = MappedIndex.HEADER_SIZE;
+		}
 
-			/* write the data from the TreeMap */
-			writeSortedList(stream, map);
-		} catch(UnsupportedEncodingException exception) {
-		} catch(IOException exception) {
+		public void write(String word, String description, long address) throws IOException {
+			write(word.getBytes("UTF-8"), description, address);
+		}
+
+		/**
+		 * @param buffer UTF-8 bytes of the word, the writer keeps the array
+		 */
+		public void write(byte[] buffer, String description, long address) throws IOException {
+			byte[] descBuffer;
+			int shared;
+
+			/* start new block */
+			shared = 0;
+			if(count % MappedIndex.RESTART_INTERVAL == 0) {
+				int block = count / MappedIndex.RESTART_INTERVAL;
+				if(block == restarts.length) {
+					restarts = Arrays.copyOf(restarts, restarts.length * 2);
+				}
+				restarts[block] = position;
+				previousAddress = 0;
+			} else {
+				int max = Math.min(buffer.length, previous.length);
+				while(shared < max && buffer[shared] == previous[shared]) {
+					shared++;
+				}
+			}
+
+			/* write the word */
+			position += VarInt.write(stream, shared);
+			position += VarInt.write(stream, buffer.length - shared);
+			stream.write(buffer, shared, buffer.length - shared);
+			position += buffer.length - shared;
+
+			/* write the address */
+			position += VarInt.write(stream, VarInt.encodeSigned(address - previousAddress));
+
+			/* write the description */
+			if(description != null) {
+				descBuffer = description.getBytes("UTF-8");
+				position += VarInt.write(stream, descBuffer.length + 1);
+				stream.write(descBuffer);
+				position += descBuffer.length;
+			} else {
+				position += VarInt.write(stream, 0);
+			}
+
+			if(hashes != null) {
+				if(count == hashes.length) {
+					hashes = Arrays.copyOf(hashes, hashes.length * 2);
+				}
+				hashes[count] = PerfectHash.hash(buffer, buffer.length);
+			}
+
+			previous = buffer;
+			previousAddress = address;
+			count++;
+		}
+
+		/**
+		 * Write the restart table after the blocks.
+		 */
+		public void finish() throws IOException {
+			int blockCount = (count + MappedIndex.RESTART_INTERVAL - 1) / MappedIndex.RESTART_INTERVAL;
+
+			restartTable = position;
+			for(int i = 0; i < blockCount; i++) {
+				stream.writeLong(restarts[i]);
+			}
+			if(hashes != null && count > 0) {
+				PerfectHash.write(stream, hashes, count);
+			}
+			stream.flush();
 		}
 
-		if(stream != null) {
+		public void close() throws IOException {
 			stream.close();
 		}
-		io.writeDataStoreHeader(filename);
 	}
 
 	/**
-	 * Read a sorted array from the index.
+	 * Read a sorted array from the index of the old format.
 	 */
-	private SortedArray<String, WordEntryIO> readSortedList(DataInputStream stream) throws IOException {
-		Map.Entry<String, WordEntryIO>[] entries;
+	private PackedIndex readSortedList(DataInputStream stream) throws IOException {
+		PackedIndex.Builder builder = new PackedIndex.Builder();
 
 		int size = stream.readInt();
-		entries = (Map.Entry<String, WordEntryIO>[])new Map.Entry[size];
 
 		/* read sorted list of the words and their addresses */
 		for(int i = 0; i < size; i++) {
-			WordEntryIO entry;
 			int length;
 			long address;
 			byte[] buffer;
@@ -201,63 +417,68 @@ class IndexIO {
 			/* read the word */
 			length = stream.readInt();
 			buffer = new byte[length];
-			stream.read(buffer);
+			stream.readFully(buffer);
 			word = new String(buffer, "UTF-8");
 
 			/* read the description */
 			length = stream.readInt();
 			buffer = new byte[length];
-			stream.read(buffer);
+			stream.readFully(buffer);
 			description = new String(buffer, "UTF-8");
 
 			/* append the address of the word */
 			address = stream.readLong();
 
-			/* create new entry to the entries array */
-			entry = createWordEntry(word, address);
-			entries[i] = new AbstractMap.SimpleEntry<String, WordEntryIO>(word, entry);
-
-			if(description.length() > 0) {
-				WordEntry data = entry.data;
-				data.setDescription(description);
-			}
+			builder.add(word, (description.length() > 0) ? description : null, address);
 		}
-		return new SortedArray<String, WordEntryIO>(entries);
+		return builder.build();
 	}
 
-	private WordEntryIO createWordEntry(String word, long address) {
-		WordEntryIO entryIO;
-		WordEntry entry;
-
-		entry = new WordEntry(word, null, null);
-		entryIO = new WordEntryIO(entry, address);
-
-		return entryIO;
-	}
-
-	private void writeSortedList(DataOutputStream stream, TreeMap<String, WordEntryIO> map) throws IOException {
-		stream.writeInt(map.size());
-
-		for(Map.Entry<String, WordEntryIO> entry : map.entrySet()) {
-			byte[] buffer;
+	/**
+	 * Merge the old index and the changes, and write the words
+	 * in the sorted order.
+	 */
+	private void writeSortedList(BlockWriter writer, IndexTable table,
+	                             Iterator<Map.Entry<String, WordEntryIO>> iter) throws IOException {
+		Map.Entry<String, WordEntryIO> change;
+		IndexTable.Cursor cursor;
+		byte[] changeBytes;
+
+		change = iter.hasNext() ? iter.next() : null;
+		changeBytes = (change != null) ? WordDatabase.getBytes(change.getKey()) : null;
+		cursor = table.seek("");
+
+		while(cursor.isValid() || change != null) {
+			int order;
+
+			if(!cursor.isValid()) {
+				order = 1;
+			} else if(change == null) {
+				order = -1;
+			} else {
+				order = cursor.compareTo(changeBytes);
+			}
 
-			/* write the word */
-			buffer = entry.getKey().getBytes("UTF-8");
-			stream.writeInt(buffer.length);
-			stream.write(buffer);
+			/* the word is unchanged, and it is copied without decoding */
+			if(order < 0) {
+				int offset = cursor.getWordOffset();
+				byte[] word = Arrays.copyOfRange(cursor.getWordBytes(), offset, offset + cursor.getWordLength());
 
-			/* write the description */
-			WordEntry data = entry.getValue().data;
-			if(data.getDescription() != null) {
-				buffer = data.getDescription().getBytes("UTF-8");
-				stream.writeInt(buffer.length);
-				stream.write(buffer);
-			} else {
-				stream.writeInt(0);
+				writer.write(word, cursor.getDescription(), cursor.getAddress());
+				cursor.next();
+				continue;
 			}
 
-			/* append the address of the word */
-			stream.writeLong(entry.getValue().address);
+			/* the changed word replaces the word in the old index */
+			if(order == 0) {
+				cursor.next();
+			}
+			if(change.getValue() != WordEntryIO.REMOVED) {
+				WordEntryIO entry = change.getValue();
+				writer.write(changeBytes, entry.data.getDescription(), entry.address);
+			}
+			change = iter.hasNext() ? iter.next() : null;
+			changeBytes = (change != null) ? WordDatabase.getBytes(change.getKey()) : null;
 		}
 	}
 }
@@ -0,0 +1,248 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the words from the records of the data store, when the index
+ * file is lost. The data store is split to chunks that are scanned in
+ * parallel. Only the first chunk starts at a known record, so the
+ * other chunks look for the first place where a few records in a row
+ * can be decoded.
+ *
+ * Every chunk is scanned a bit over its end, until the first record
+ * that starts in the next chunk. If that isn't the record where the
+ * next chunk started, the guess was wrong and the next chunk is
+ * scanned again from the right place. So the result is the same as
+ * with a single scan from the start.
+ *
+ * The words are given to the sorter in the order of their records,
+ * so the latest record of each word is kept.
+ */
+class IndexRebuilder {
+	private final static long MIN_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/* the records in a row that are decoded before a chunk is trusted */
+	private final static int SYNC_RECORDS = 3;
+
+	private DataStoreIO io;
+	private MappedFile file;
+	private long start;
+	private long minChunkSize;
+
+	/**
+	 * @param io The data store that decodes the records
+	 * @param file The mapped data store
+	 * @param start The address of the first record
+	 */
+	public IndexRebuilder(DataStoreIO io, MappedFile file, long start) {
+		this(io, file, start, MIN_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param minChunkSize The smallest part of the file that is given to a thread
+	 */
+	protected IndexRebuilder(DataStoreIO io, MappedFile file, long start, long minChunkSize) {
+		this.io = io;
+		this.file = file;
+		this.start = start;
+		this.minChunkSize = minChunkSize;
+	}
+
+	/**
+	 * The words found from one chunk.
+	 */
+	private final static class Chunk {
+		private long first;
+		private long end;
+		private long next;
+		private List<String> words = new ArrayList<String>();
+		private List<Long> addresses = new ArrayList<Long>();
+	}
+
+	/**
+	 * Scan the data store and give the words to the sorter.
+	 * @param sorter The sorter that gets the words and the addresses
+	 * @return The number of the records with a word
+	 */
+	public int rebuild(ExternalSorter sorter) throws IOException {
+		List<Future<Chunk>> results;
+		ExecutorService executor;
+		long length, chunkSize, end;
+		int threads, count;
+
+		length = file.length();
+		threads = Runtime.getRuntime().availableProcessors();
+		/* a few chunks for each thread, so that a slow chunk doesn't
+		 * leave the other threads idle */
+		chunkSize = Math.max(minChunkSize, (length - start) / (4 * threads) + 1);
+
+		executor = Executors.newFixedThreadPool(threads);
+		results = new ArrayList<Future<Chunk>>();
+		try {
+			for(long position = start; position < length; position += chunkSize) {
+				final long chunkStart = position;
+				final long chunkEnd = Math.min(length, position + chunkSize);
+				final boolean known = (position == start);
+
+				results.add(executor.submit(new Callable<Chunk>() {
+					public Chunk call() {
+						return scan(chunkStart, chunkEnd, known);
+					}
+				}));
+			}
+
+			/* the chunks are joined in order, the end of each chunk
+			 * tells where the next one really starts */
+			end = start;
+			count = 0;
+			for(Future<Chunk> result : results) {
+				Chunk chunk = result.get();
+
+				if(chunk.first != end) {
+					System.out.println("DB: scan again from " + end);
+					chunk = scan(end, Math.max(end, chunk.end), true);
+				}
+				for(int i = 0; i < chunk.words.size(); i++) {
+					sorter.add(chunk.words.get(i), null, chunk.addresses.get(i));
+				}
+				count += chunk.words.size();
+				end = chunk.next;
+			}
+		} catch(InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new IOException("The index reconstruction was interrupted", exception);
+		} catch(ExecutionException exception) {
+			throw new IOException("The index reconstruction failed", exception.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		return count;
+	}
+
+	/**
+	 * Decode the records of a chunk.
+	 * @param position The start of the chunk
+	 * @param end The end of the chunk
+	 * @param known True if a record starts at the position
+	 */
+	private Chunk scan(long position, long end, boolean known) {
+		Chunk chunk = new Chunk();
+
+		if(!known) {
+			position = synchronize(position, end);
+		}
+		chunk.first = position;
+		chunk.end = end;
+
+		/* the last record may continue to the next chunk */
+		while(position < end) {
+			long next = nextRecord(position);
+			String word;
+
+			/* the record is broken, but the rest may still be readable */
+			if(next < 0) {
+				position = synchronize(position + 1, file.length());
+				continue;
+			}
+			word = decodeWord(position);
+			if(word != null) {
+				chunk.words.add(word);
+				chunk.addresses.add(position);
+			}
+			position = next;
+		}
+		chunk.next = position;
+		return chunk;
+	}
+
+	/**
+	 * Find the first place in the chunk where the records can be read.
+	 * @return The address of a record or the end of the chunk
+	 */
+	private long synchronize(long position, long end) {
+		for(; position < end; position++) {
+			long next = position;
+			int i;
+
+			for(i = 0; i < SYNC_RECORDS && next < file.length(); i++) {
+				if(decodeWord(next) == null && !isDictionary(next)) {
+					break;
+				}
+				next = nextRecord(next);
+				if(next < 0) {
+					break;
+				}
+			}
+			if(i == SYNC_RECORDS || next == file.length()) {
+				return position;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Get the address after the record.
+	 * @return The address or -1 if the record doesn't fit to the file
+	 */
+	private long nextRecord(long position) {
+		int size;
+
+		if(position + 4 > file.length()) {
+			return -1;
+		}
+		size = file.getInt(position);
+		if(size <= 0 || position + 4 + size > file.length()) {
+			return -1;
+		}
+		return position + 4 + size;
+	}
+
+	private boolean isDictionary(long position) {
+		try {
+			return io.isDictionaryRecord(file.slice(position + 4, file.getInt(position)));
+		} catch(IndexOutOfBoundsException exception) {
+		} catch(IllegalArgumentException exception) {
+		}
+		return false;
+	}
+
+	/**
+	 * Decode the word of the record.
+	 * @return The word or null if the record isn't valid or it doesn't have a word
+	 */
+	private String decodeWord(long position) {
+		long next = nextRecord(position);
+
+		if(next < 0) {
+			return null;
+		}
+		try {
+			return io.decodeRecordWord(file.slice(position + 4, (int)(next - position - 4)));
+		} catch(IOException exception) {
+		}
+		return null;
+	}
+}
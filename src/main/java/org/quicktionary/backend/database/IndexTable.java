@@ -0,0 +1,148 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+/**
+ * Sorted and read only list of the words and the addresses of
+ * their records. The index doesn't create WordEntry objects, the
+ * database creates them only for the words that are used.
+ *
+ * The words are compared as UTF-8 bytes, so the searches don't
+ * decode the words that they pass.
+ */
+abstract class IndexTable {
+	/**
+	 * Create an index that doesn't have any words.
+	 */
+	public static IndexTable empty() {
+		return new PackedIndex.Builder().build();
+	}
+
+	/**
+	 * Get the number of the words.
+	 */
+	public abstract int size();
+
+	/**
+	 * Get the number of the entries in the files. It is cheaper than
+	 * size, but the same word may be counted more than once.
+	 */
+	public int entryCount() {
+		return size();
+	}
+
+	/**
+	 * Find the first word that is equal or larger than the given word.
+	 * @param word The word to be searched
+	 * @return Cursor at the word, the cursor isn't valid if all words are smaller
+	 */
+	public Cursor seek(String word) {
+		return seek(WordDatabase.getBytes(word));
+	}
+
+	/**
+	 * @param word UTF-8 bytes of the word to be searched
+	 */
+	public abstract Cursor seek(byte[] word);
+
+	/**
+	 * Find the word.
+	 * @param word The word to be searched
+	 * @return Cursor at the word or null if the word isn't found
+	 */
+	public Cursor find(String word) {
+		return find(WordDatabase.getBytes(word));
+	}
+
+	/**
+	 * @param word UTF-8 bytes of the word to be searched
+	 */
+	public Cursor find(byte[] word) {
+		Cursor cursor = seek(word);
+
+		if(cursor.isValid() && cursor.compareTo(word) == 0) {
+			return cursor;
+		}
+		return null;
+	}
+
+	/**
+	 * Release the file of the index.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * Position in the index.
+	 */
+	public abstract static class Cursor {
+		public abstract boolean isValid();
+
+		/**
+		 * Move to the next word.
+		 */
+		public abstract void next();
+
+		public abstract String getWord();
+
+		/**
+		 * Get the array that has the UTF-8 bytes of the word. The
+		 * array may be reused, when the cursor is moved.
+		 */
+		public abstract byte[] getWordBytes();
+
+		/**
+		 * Get the position of the word in the array of getWordBytes.
+		 */
+		public abstract int getWordOffset();
+
+		/**
+		 * Get the number of the UTF-8 bytes of the word.
+		 */
+		public abstract int getWordLength();
+
+		/**
+		 * Compare the word to another word without decoding it.
+		 * @param word UTF-8 bytes of the other word
+		 * @return Negative, zero or positive like String.compareTo
+		 */
+		public int compareTo(byte[] word) {
+			return Utf8.compare(getWordBytes(), getWordOffset(), getWordLength(), word, 0, word.length);
+		}
+
+		/**
+		 * Compare the word to the word of another cursor.
+		 */
+		public int compareTo(Cursor other) {
+			return Utf8.compare(getWordBytes(), getWordOffset(), getWordLength(),
+			                    other.getWordBytes(), other.getWordOffset(), other.getWordLength());
+		}
+
+		/**
+		 * Check if the word starts with the prefix without
+		 * decoding the word.
+		 * @param prefix UTF-8 bytes of the prefix
+		 */
+		public boolean startsWith(byte[] prefix) {
+			return Utf8.startsWith(getWordBytes(), getWordOffset(), getWordLength(), prefix);
+		}
+
+		public abstract String getDescription();
+
+		public abstract long getAddress();
+	}
+}
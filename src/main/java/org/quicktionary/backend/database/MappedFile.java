@@ -0,0 +1,176 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read only memory mapping of a file. The file is mapped in chunks,
+ * because a single MappedByteBuffer can't be larger than 2 GB.
+ *
+ * All the read methods use absolute positions, so the same
+ * MappedFile can be shared between any number of threads.
+ */
+class MappedFile {
+	private final static int CHUNK_SHIFT = 30;
+	private final static long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+	private final static int CHUNK_MASK = (int)CHUNK_SIZE - 1;
+
+	private FileChannel channel;
+	private volatile Mapping mapping;
+
+	/**
+	 * The chunks and the length of the file are changed together,
+	 * so a reader never sees a length that the chunks don't cover.
+	 */
+	private final static class Mapping {
+		private final MappedByteBuffer[] chunks;
+		private final long length;
+
+		private Mapping(MappedByteBuffer[] chunks, long length) {
+			this.chunks = chunks;
+			this.length = length;
+		}
+
+		private MappedByteBuffer chunk(long position, int size) {
+			if(position < 0 || size < 0 || position + size > length) {
+				throw new IndexOutOfBoundsException("The range isn't inside the mapped file.");
+			}
+			return chunks[(int)(position >>> CHUNK_SHIFT)];
+		}
+	}
+
+	public MappedFile(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.mapping = new Mapping(new MappedByteBuffer[0], 0);
+		remap();
+	}
+
+	/**
+	 * Map the part of the file that has been appended after
+	 * the previous call.
+	 */
+	public synchronized void remap() throws IOException {
+		MappedByteBuffer[] oldChunks, newChunks;
+		long size;
+		int count, first;
+
+		size = channel.size();
+		if(size == mapping.length) {
+			return;
+		}
+
+		oldChunks = mapping.chunks;
+		count = (int)((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+		newChunks = Arrays.copyOf(oldChunks, count);
+
+		/* the last chunk may have grown or shrunk, so it is mapped again */
+		first = Math.max(0, Math.min(oldChunks.length, count) - 1);
+		for(int i = first; i < count; i++) {
+			long start = (long)i << CHUNK_SHIFT;
+			long chunkLength = Math.min(CHUNK_SIZE, size - start);
+
+			newChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, chunkLength);
+		}
+
+		mapping = new Mapping(newChunks, size);
+	}
+
+	/**
+	 * Get the length of the mapped part of the file.
+	 */
+	public long length() {
+		return mapping.length;
+	}
+
+	public byte get(long position) {
+		return mapping.chunk(position, 1).get((int)position & CHUNK_MASK);
+	}
+
+	public int getInt(long position) {
+		Mapping current = mapping;
+		MappedByteBuffer chunk;
+		int offset;
+
+		chunk = current.chunk(position, 4);
+		offset = (int)position & CHUNK_MASK;
+
+		if(offset + 4 <= chunk.limit()) {
+			return chunk.getInt(offset);
+		}
+		return slice(current, position, 4).getInt();
+	}
+
+	public long getLong(long position) {
+		Mapping current = mapping;
+		MappedByteBuffer chunk;
+		int offset;
+
+		chunk = current.chunk(position, 8);
+		offset = (int)position & CHUNK_MASK;
+
+		if(offset + 8 <= chunk.limit()) {
+			return chunk.getLong(offset);
+		}
+		return slice(current, position, 8).getLong();
+	}
+
+	/**
+	 * Get a view to the file. If the range crosses a chunk
+	 * boundary the bytes are copied to a heap buffer.
+	 *
+	 * @param position The position of the first byte in the file
+	 * @param size The number of bytes wanted
+	 * @return A buffer that has position at zero and limit at size
+	 */
+	public ByteBuffer slice(long position, int size) {
+		return slice(mapping, position, size);
+	}
+
+	private static ByteBuffer slice(Mapping current, long position, int size) {
+		MappedByteBuffer[] chunks = current.chunks;
+		ByteBuffer view, copy;
+		int index, offset;
+
+		current.chunk(position, size);
+		index = (int)(position >>> CHUNK_SHIFT);
+		offset = (int)position & CHUNK_MASK;
+
+		if(offset + size <= chunks[index].limit()) {
+			view = chunks[index].duplicate();
+			view.position(offset);
+			view.limit(offset + size);
+			return view.slice();
+		}
+
+		/* the range continues to the next chunks */
+		copy = ByteBuffer.allocate(size);
+		while(copy.hasRemaining()) {
+			view = chunks[index++].duplicate();
+			view.position(offset);
+			view.limit(Math.min(view.limit(), offset + copy.remaining()));
+			copy.put(view);
+			offset = 0;
+		}
+		copy.flip();
+		return copy;
+	}
+}
@@ -0,0 +1,318 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.Arrays;
+
+/**
+ * Read only view to a memory mapped index file. The words are
+ * sorted, so they can be binary searched straight from the file
+ * without reading the whole index to the memory.
+ *
+ * The words are stored in blocks. The first word of the block is
+ * stored as is and the other words only store the part that differs
+ * from the previous word. Every word is encoded as varints:
+ * <pre>
+ * shared          The number of bytes shared with the previous word
+ * suffixLength    The number of the following UTF-8 bytes
+ * suffix          The rest of the word
+ * address         The difference to the previous address
+ * descLength      The length of the description plus one, zero if none
+ * description     UTF-8 bytes of the description
+ * </pre>
+ * The file ends with restart table that has the position of
+ * every block, so the blocks can be binary searched. The restart
+ * table may be followed by the PerfectHash of the words, which
+ * gives the slot of a word without the binary search.
+ */
+class MappedIndex extends IndexTable {
+	protected final static int HEADER_SIZE = 4 + 4 + 4 + 8;
+	protected final static int RESTART_INTERVAL = 16;
+
+	private RandomAccessFile file;
+	private MappedFile mapped;
+	private int size, interval, blockCount;
+	private long restartTable;
+	private PerfectHash hash;
+
+	private MappedIndex() {
+		this.file = null;
+		this.mapped = null;
+		this.size = 0;
+		this.interval = RESTART_INTERVAL;
+		this.blockCount = 0;
+		this.restartTable = HEADER_SIZE;
+	}
+
+	/**
+	 * Map the index file. The signature must be already checked.
+	 * @param indexFile The index file
+	 * @return The index
+	 */
+	public static MappedIndex open(File indexFile) throws IOException {
+		MappedIndex table = new MappedIndex();
+
+		table.file = new RandomAccessFile(indexFile, "r");
+		try {
+			table.mapped = new MappedFile(table.file.getChannel());
+			table.size = table.mapped.getInt(4);
+			table.interval = table.mapped.getInt(8);
+			table.restartTable = table.mapped.getLong(12);
+
+			if(table.size < 0 || table.interval <= 0) {
+				throw new IOException("The index file is corrupted.");
+			}
+			table.blockCount = (int)(((long)table.size + table.interval - 1) / table.interval);
+
+			if(table.restartTable + (long)table.blockCount * 8 > table.mapped.length()) {
+				throw new IOException("The index file is corrupted.");
+			}
+			table.hash = PerfectHash.open(table.mapped, table.restartTable + (long)table.blockCount * 8);
+		} catch(IndexOutOfBoundsException exception) {
+			table.close();
+			throw new IOException("The index file is truncated.", exception);
+		} catch(IOException exception) {
+			table.close();
+			throw exception;
+		}
+		return table;
+	}
+
+	/**
+	 * Close the file. The mapping stays valid until it is
+	 * garbage collected.
+	 */
+	public void close() {
+		if(file == null) {
+			return;
+		}
+		try {
+			file.close();
+		} catch(IOException exception) {
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find the word with the perfect hash, if the index has it.
+	 * The word at the slot is compared to make sure that
+	 * it is the word that was asked.
+	 */
+	public Cursor find(byte[] word) {
+		BlockCursor cursor;
+		int slot;
+
+		if(hash == null) {
+			return super.find(word);
+		}
+
+		slot = hash.lookup(PerfectHash.hash(word, word.length));
+		if(slot >= 0 && slot < size) {
+			cursor = new BlockCursor();
+			cursor.loadBlock(slot / interval);
+			while(cursor.slot < slot) {
+				cursor.next();
+			}
+			if(cursor.compareTo(word) == 0) {
+				return cursor;
+			}
+		}
+		return hash.isComplete() ? null : super.find(word);
+	}
+
+	public Cursor seek(byte[] word) {
+		BlockCursor cursor;
+		int low, high;
+
+		/* find the last block that starts with smaller or equal word */
+		low = 0;
+		high = blockCount - 1;
+		while(low < high) {
+			int middle = (low + high + 1) >>> 1;
+
+			if(compareFirstWord(middle, word) <= 0) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		cursor = new BlockCursor();
+		if(blockCount == 0) {
+			return cursor;
+		}
+
+		/* find the word inside of the block */
+		cursor.loadBlock(low);
+		while(cursor.isValid() && cursor.compareTo(word) < 0) {
+			cursor.next();
+		}
+		return cursor;
+	}
+
+	private ByteBuffer getBlock(int block) {
+		long start, end;
+
+		start = mapped.getLong(restartTable + (long)block * 8);
+		if(block + 1 < blockCount) {
+			end = mapped.getLong(restartTable + (long)(block + 1) * 8);
+		} else {
+			end = restartTable;
+		}
+		return mapped.slice(start, (int)(end - start));
+	}
+
+	/**
+	 * Compare the first word of the block to the word
+	 * in the mapped file without copying it.
+	 */
+	private int compareFirstWord(int block, byte[] word) {
+		ByteBuffer buffer = getBlock(block);
+		int length;
+
+		/* the first word doesn't share anything */
+		VarInt.readInt(buffer);
+		length = VarInt.readInt(buffer);
+		return Utf8.compare(buffer, length, word);
+	}
+
+	private static String decode(ByteBuffer buffer, int length) {
+		try {
+			return TextNodeIO.decodeString(buffer, length);
+		} catch(UnsupportedEncodingException exception) {
+			throw new Error("Your runtime doesn't support UTF-8.");
+		}
+	}
+
+	/**
+	 * Position in the index. The cursor decodes the words incrementally
+	 * and the String objects are only created when they are asked.
+	 */
+	private final class BlockCursor extends Cursor {
+		private int slot;
+		private ByteBuffer buffer;
+		private byte[] word;
+		private int wordLength;
+		private String wordString;
+		private long address;
+		private int descPosition, descLength;
+
+		private BlockCursor() {
+			this.slot = size;
+			this.word = new byte[64];
+		}
+
+		private void loadBlock(int block) {
+			slot = block * interval;
+			buffer = getBlock(block);
+			wordLength = 0;
+			address = 0;
+			readEntry();
+		}
+
+		private void readEntry() {
+			int shared, suffixLength;
+
+			try {
+				shared = VarInt.readInt(buffer);
+				suffixLength = VarInt.readInt(buffer);
+				if(shared > wordLength) {
+					throw new BufferUnderflowException();
+				}
+				if(shared + suffixLength > word.length) {
+					word = Arrays.copyOf(word, Math.max(word.length * 2, shared + suffixLength));
+				}
+				buffer.get(word, shared, suffixLength);
+				wordLength = shared + suffixLength;
+				wordString = null;
+
+				address += VarInt.decodeSigned(VarInt.readLong(buffer));
+
+				descLength = VarInt.readInt(buffer) - 1;
+				descPosition = buffer.position();
+				if(descLength > 0) {
+					buffer.position(descPosition + descLength);
+				}
+			} catch(BufferUnderflowException exception) {
+				throw new Error("The index file is corrupted.");
+			}
+		}
+
+		public boolean isValid() {
+			return slot < size;
+		}
+
+		public void next() {
+			slot++;
+			if(slot >= size) {
+				return;
+			}
+			if(slot % interval == 0) {
+				loadBlock(slot / interval);
+			} else {
+				readEntry();
+			}
+		}
+
+		public String getWord() {
+			if(wordString == null) {
+				try {
+					wordString = new String(word, 0, wordLength, "UTF-8");
+				} catch(UnsupportedEncodingException exception) {
+					throw new Error("Your runtime doesn't support UTF-8.");
+				}
+			}
+			return wordString;
+		}
+
+		public byte[] getWordBytes() {
+			return word;
+		}
+
+		public int getWordOffset() {
+			return 0;
+		}
+
+		public int getWordLength() {
+			return wordLength;
+		}
+
+		public String getDescription() {
+			ByteBuffer view;
+
+			if(descLength < 0) {
+				return null;
+			}
+			view = buffer.duplicate();
+			view.position(descPosition);
+			return decode(view, descLength);
+		}
+
+		public long getAddress() {
+			return address;
+		}
+	}
+}
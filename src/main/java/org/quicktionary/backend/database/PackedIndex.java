@@ -0,0 +1,265 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Index that is kept in the memory. The UTF-8 bytes of all words
+ * are stored in one array and the offsets and the addresses in
+ * primitive arrays, so a word takes only few bytes more than
+ * its characters.
+ *
+ * This is used when the index file isn't memory mapped, and when
+ * the index file of the old format is converted.
+ */
+class PackedIndex extends IndexTable {
+	private byte[] words, descriptions;
+	private int[] wordOffsets, descOffsets;
+	private long[] addresses;
+	private int size;
+
+	private PackedIndex(Builder builder) {
+		this.size = builder.size;
+		this.words = Arrays.copyOf(builder.words, builder.wordOffsets[size]);
+		this.descriptions = Arrays.copyOf(builder.descriptions, builder.descOffsets[size]);
+		this.wordOffsets = Arrays.copyOf(builder.wordOffsets, size + 1);
+		this.descOffsets = Arrays.copyOf(builder.descOffsets, size + 1);
+		this.addresses = Arrays.copyOf(builder.addresses, size);
+	}
+
+	/**
+	 * Read the index file to the memory.
+	 * @param indexFile The index file of the current format
+	 * @return The index
+	 */
+	public static PackedIndex load(File indexFile) throws IOException {
+		DataInputStream stream;
+		Builder builder;
+		byte[] word, description;
+		int count, interval, wordLength;
+		long address;
+
+		stream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			/* skip the signature */
+			stream.readInt();
+			count = stream.readInt();
+			interval = stream.readInt();
+			stream.readLong();
+
+			if(count < 0 || interval <= 0) {
+				throw new IOException("The index file is corrupted.");
+			}
+
+			builder = new Builder();
+			word = new byte[64];
+			wordLength = 0;
+			address = 0;
+
+			/* the blocks are in the sorted order, so the restart
+			 * table at the end of the file isn't needed */
+			for(int i = 0; i < count; i++) {
+				int shared, suffixLength, descLength;
+
+				if(i % interval == 0) {
+					address = 0;
+				}
+
+				shared = VarInt.readInt(stream);
+				suffixLength = VarInt.readInt(stream);
+				if(shared > wordLength) {
+					throw new IOException("The index file is corrupted.");
+				}
+				if(shared + suffixLength > word.length) {
+					word = Arrays.copyOf(word, Math.max(word.length * 2, shared + suffixLength));
+				}
+				stream.readFully(word, shared, suffixLength);
+				wordLength = shared + suffixLength;
+
+				address += VarInt.decodeSigned(VarInt.readLong(stream));
+
+				descLength = VarInt.readInt(stream) - 1;
+				description = null;
+				if(descLength >= 0) {
+					description = new byte[descLength];
+					stream.readFully(description);
+				}
+
+				builder.add(word, wordLength, description, address);
+			}
+		} finally {
+			stream.close();
+		}
+		return builder.build();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public Cursor seek(byte[] word) {
+		int low, high;
+
+		low = 0;
+		high = size;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+
+			int start = wordOffsets[middle];
+
+			if(Utf8.compare(words, start, wordOffsets[middle + 1] - start, word, 0, word.length) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return new ArrayCursor(low);
+	}
+
+	private String getWord(int slot) {
+		return decode(words, wordOffsets[slot], wordOffsets[slot + 1]);
+	}
+
+	private static String decode(byte[] bytes, int start, int end) {
+		try {
+			return new String(bytes, start, end - start, "UTF-8");
+		} catch(UnsupportedEncodingException exception) {
+			throw new Error("Your runtime doesn't support UTF-8.");
+		}
+	}
+
+	private final class ArrayCursor extends Cursor {
+		private int slot;
+
+		private ArrayCursor(int slot) {
+			this.slot = slot;
+		}
+
+		public boolean isValid() {
+			return slot < size;
+		}
+
+		public void next() {
+			slot++;
+		}
+
+		public String getWord() {
+			return PackedIndex.this.getWord(slot);
+		}
+
+		public byte[] getWordBytes() {
+			return words;
+		}
+
+		public int getWordOffset() {
+			return wordOffsets[slot];
+		}
+
+		public int getWordLength() {
+			return wordOffsets[slot + 1] - wordOffsets[slot];
+		}
+
+		/**
+		 * The empty descriptions are returned as null.
+		 */
+		public String getDescription() {
+			if(descOffsets[slot] == descOffsets[slot + 1]) {
+				return null;
+			}
+			return decode(descriptions, descOffsets[slot], descOffsets[slot + 1]);
+		}
+
+		public long getAddress() {
+			return addresses[slot];
+		}
+	}
+
+	/**
+	 * Collects the words in the sorted order.
+	 */
+	public final static class Builder {
+		private byte[] words, descriptions;
+		private int[] wordOffsets, descOffsets;
+		private long[] addresses;
+		private int size;
+
+		public Builder() {
+			words = new byte[1024];
+			descriptions = new byte[256];
+			wordOffsets = new int[65];
+			descOffsets = new int[65];
+			addresses = new long[64];
+			size = 0;
+		}
+
+		/**
+		 * Append a word. The words must be added in the sorted order.
+		 */
+		public void add(String word, String description, long address) {
+			byte[] descBuffer = null;
+			byte[] buffer;
+
+			try {
+				buffer = word.getBytes("UTF-8");
+				if(description != null) {
+					descBuffer = description.getBytes("UTF-8");
+				}
+			} catch(UnsupportedEncodingException exception) {
+				throw new Error("Your runtime doesn't support UTF-8.");
+			}
+			add(buffer, buffer.length, descBuffer, address);
+		}
+
+		private void add(byte[] word, int wordLength, byte[] description, long address) {
+			int descLength = (description != null) ? description.length : 0;
+
+			if(size == addresses.length) {
+				addresses = Arrays.copyOf(addresses, size * 2);
+				wordOffsets = Arrays.copyOf(wordOffsets, size * 2 + 1);
+				descOffsets = Arrays.copyOf(descOffsets, size * 2 + 1);
+			}
+			words = append(words, wordOffsets[size], word, wordLength);
+			descriptions = append(descriptions, descOffsets[size], description, descLength);
+
+			addresses[size] = address;
+			wordOffsets[size + 1] = wordOffsets[size] + wordLength;
+			descOffsets[size + 1] = descOffsets[size] + descLength;
+			size++;
+		}
+
+		private static byte[] append(byte[] arena, int end, byte[] bytes, int length) {
+			if(end + length > arena.length) {
+				arena = Arrays.copyOf(arena, Math.max(arena.length * 2, end + length));
+			}
+			if(length > 0) {
+				System.arraycopy(bytes, 0, arena, end, length);
+			}
+			return arena;
+		}
+
+		public PackedIndex build() {
+			return new PackedIndex(this);
+		}
+	}
+}
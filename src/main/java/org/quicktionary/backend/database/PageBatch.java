@@ -0,0 +1,102 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.quicktionary.backend.WordEntry;
+import org.quicktionary.backend.TextNode;
+
+/**
+ * The pages that are read together. Every run of the records that are
+ * near each other is read by its own task, and the batch is done when
+ * all of them are done.
+ *
+ * The tasks are never interrupted, because an interrupt closes the
+ * channel of the data store. A cancelled task only stops before
+ * it has started.
+ */
+class PageBatch implements Future<Map<WordEntry, TextNode>> {
+	private Map<WordEntry, TextNode> cached;
+	private List<Future<Map<WordEntry, TextNode>>> runs;
+
+	/**
+	 * @param cached The contents of the pages that were in the cache
+	 * @param runs The tasks that give the contents of the pages they read
+	 */
+	public PageBatch(Map<WordEntry, TextNode> cached, List<Future<Map<WordEntry, TextNode>>> runs) {
+		this.cached = new HashMap<WordEntry, TextNode>(cached);
+		this.runs = new ArrayList<Future<Map<WordEntry, TextNode>>>(runs);
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean cancelled = false;
+
+		for(Future<Map<WordEntry, TextNode>> run : runs) {
+			cancelled |= run.cancel(false);
+		}
+		return cancelled;
+	}
+
+	public boolean isCancelled() {
+		for(Future<Map<WordEntry, TextNode>> run : runs) {
+			if(run.isCancelled()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isDone() {
+		for(Future<Map<WordEntry, TextNode>> run : runs) {
+			if(!run.isDone()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until all the runs are read.
+	 * @return The contents of the pages that were read
+	 */
+	public Map<WordEntry, TextNode> get() throws InterruptedException, ExecutionException {
+		Map<WordEntry, TextNode> contents = new HashMap<WordEntry, TextNode>(cached);
+
+		for(Future<Map<WordEntry, TextNode>> run : runs) {
+			contents.putAll(run.get());
+		}
+		return contents;
+	}
+
+	public Map<WordEntry, TextNode> get(long timeout, TimeUnit unit)
+		throws InterruptedException, ExecutionException, TimeoutException {
+		Map<WordEntry, TextNode> contents = new HashMap<WordEntry, TextNode>(cached);
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		for(Future<Map<WordEntry, TextNode>> run : runs) {
+			contents.putAll(run.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+		}
+		return contents;
+	}
+}
@@ -0,0 +1,172 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.quicktionary.backend.TextNode;
+
+/**
+ * The decoded pages that were used last. The pages are found by
+ * the address of their record, so a page that is written again
+ * never gets the old content from the cache.
+ *
+ * The size of the pages is estimated when they are added, and the
+ * least recently used pages are removed when the cache grows over
+ * its capacity. The latest page is always kept, so the page that
+ * was just fetched can be shown even if it is larger than the cache.
+ */
+public class PageCache {
+	private final LinkedHashMap<Long, Page> pages;
+	private long capacity;
+	private long size;
+
+	private long hits, misses, evictions;
+
+	/**
+	 * A decoded record. The source is here only if it was in the
+	 * record, otherwise the page has the address of the source.
+	 */
+	protected final static class Page {
+		private final TextNode content;
+		private final String source;
+		private final long sourceAddress;
+		private final long size;
+
+		/**
+		 * @param recordSize The size of the decoded record in bytes
+		 */
+		protected Page(TextNode content, String source, long sourceAddress, int recordSize) {
+			this.content = content;
+			this.source = source;
+			this.sourceAddress = sourceAddress;
+
+			/* the parsed tree takes a lot more than the encoded one */
+			this.size = 64 + 8L * recordSize;
+		}
+
+		public TextNode getContent() {
+			return content;
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		public long getSourceAddress() {
+			return sourceAddress;
+		}
+	}
+
+	/**
+	 * @param capacity The estimated size of the pages in bytes
+	 */
+	public PageCache(long capacity) {
+		this.pages = new LinkedHashMap<Long, Page>(256, 0.75f, true);
+		this.capacity = capacity;
+		this.size = 0;
+	}
+
+	/**
+	 * Get the page from the cache.
+	 * @param address The address of the record of the page
+	 * @return The page or null if it isn't in the cache
+	 */
+	protected synchronized Page get(long address) {
+		Page page = pages.get(address);
+
+		if(page == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return page;
+	}
+
+	/**
+	 * Check if the page is in the cache without counting it as a use.
+	 */
+	public synchronized boolean contains(long address) {
+		return pages.containsKey(address);
+	}
+
+	/**
+	 * Add the page to the cache.
+	 * @param address The address of the record of the page
+	 * @param page The decoded record
+	 */
+	protected synchronized void put(long address, Page page) {
+		Page old;
+
+		old = pages.put(address, page);
+		if(old != null) {
+			size -= old.size;
+		}
+		size += page.size;
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Page> iter = pages.values().iterator();
+
+		while(size > capacity && pages.size() > 1) {
+			Page page = iter.next();
+
+			size -= page.size;
+			iter.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the estimated size of the pages in bytes.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getPageCount() {
+		return pages.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized void clear() {
+		pages.clear();
+		size = 0;
+	}
+}
@@ -0,0 +1,342 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal perfect hash of the words of an index file, that gives the
+ * slot of the word in the sorted index without comparing any words.
+ *
+ * The hash is built in levels like BBHash. Every word that is left
+ * sets a bit in the bit array of the level, which is twice as large
+ * as the number of the words. The words whose bit isn't shared with
+ * another word are placed on the level, and the others are tried on
+ * the next level. The place of a word is the number of the placed
+ * words before it, and the slot table turns that to the slot in the
+ * index. This takes about three bits for each word and the bits of
+ * the slot.
+ *
+ * The words that aren't placed on any level are left out, and they
+ * are found by searching the index. A word that isn't in the index
+ * gives a random slot, so the word at the slot has to be compared.
+ *
+ * The hash is stored after the restart table of the index file:
+ * <pre>
+ * signature       'M', 'P', 'H', 0
+ * count           The number of the words in the index
+ * levels          The number of the levels
+ * leftovers       The number of the words that weren't placed
+ * slotBits        The number of the bits in a slot
+ * levelSizes      The number of the bits in every level as longs
+ * bits            The bits of all levels as longs
+ * ranks           The number of the set bits before every 512 bits as ints
+ * slots           The slots packed to longs
+ * </pre>
+ */
+class PerfectHash {
+	private final static byte[] SIGNATURE = {'M', 'P', 'H', 0};
+	private final static int MAX_LEVELS = 32;
+	private final static int GAMMA = 2;
+
+	/* the number of the longs that share a rank */
+	private final static int RANK_INTERVAL = 8;
+
+	private MappedFile mapped;
+	private int count, leftovers, slotBits;
+	private long[] levelStarts;
+	private long[] levelSizes;
+	private long bitsPosition, ranksPosition, slotsPosition;
+
+	private PerfectHash() {
+	}
+
+	/**
+	 * Read the hash from the mapped index file.
+	 * @param mapped The index file
+	 * @param position The position after the restart table
+	 * @return The hash or null if the index doesn't have it
+	 */
+	public static PerfectHash open(MappedFile mapped, long position) throws IOException {
+		PerfectHash hash;
+		long bitCount;
+		int levels;
+
+		if(position + 20 > mapped.length()) {
+			return null;
+		}
+		for(int i = 0; i < SIGNATURE.length; i++) {
+			if(mapped.get(position + i) != SIGNATURE[i]) {
+				throw new IOException("The perfect hash of the index is corrupted.");
+			}
+		}
+
+		hash = new PerfectHash();
+		hash.mapped = mapped;
+		hash.count = mapped.getInt(position + 4);
+		levels = mapped.getInt(position + 8);
+		hash.leftovers = mapped.getInt(position + 12);
+		hash.slotBits = mapped.getInt(position + 16);
+		if(levels < 0 || levels > MAX_LEVELS || hash.slotBits <= 0 || hash.slotBits > 32) {
+			throw new IOException("The perfect hash of the index is corrupted.");
+		}
+
+		position += 20;
+		hash.levelStarts = new long[levels];
+		hash.levelSizes = new long[levels];
+		bitCount = 0;
+		for(int i = 0; i < levels; i++) {
+			hash.levelStarts[i] = bitCount;
+			hash.levelSizes[i] = mapped.getLong(position + i * 8);
+			bitCount += hash.levelSizes[i];
+		}
+
+		hash.bitsPosition = position + levels * 8;
+		hash.ranksPosition = hash.bitsPosition + bitCount / 8;
+		hash.slotsPosition = hash.ranksPosition + 4 * rankCount(bitCount / 64);
+		if(hash.slotsPosition + 8 * (((long)hash.count * hash.slotBits + 63) / 64) > mapped.length()) {
+			throw new IOException("The perfect hash of the index is truncated.");
+		}
+		return hash;
+	}
+
+	/**
+	 * Check if every word of the index has its place in the hash.
+	 * Otherwise the word that isn't found may still be in the index.
+	 */
+	public boolean isComplete() {
+		return leftovers == 0;
+	}
+
+	/**
+	 * Get the slot of the word.
+	 * @param hash The hash of the UTF-8 bytes of the word
+	 * @return The slot or -1 if the word isn't on any level
+	 */
+	public int lookup(long hash) {
+		for(int level = 0; level < levelSizes.length; level++) {
+			long bit = levelStarts[level] + position(hash, level, levelSizes[level]);
+
+			if((mapped.getLong(bitsPosition + (bit >>> 6) * 8) & (1L << (bit & 63))) != 0) {
+				return getSlot(rank(bit));
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Count the set bits before the bit.
+	 */
+	private long rank(long bit) {
+		long word = bit >>> 6;
+		long first = word / RANK_INTERVAL * RANK_INTERVAL;
+		long rank;
+
+		rank = mapped.getInt(ranksPosition + 4 * (word / RANK_INTERVAL)) & 0xffffffffL;
+		for(long i = first; i < word; i++) {
+			rank += Long.bitCount(mapped.getLong(bitsPosition + i * 8));
+		}
+		return rank + Long.bitCount(mapped.getLong(bitsPosition + word * 8) & ((1L << (bit & 63)) - 1));
+	}
+
+	private int getSlot(long index) {
+		long bit = index * slotBits;
+		long position = slotsPosition + (bit >>> 6) * 8;
+		int offset = (int)(bit & 63);
+		long value;
+
+		value = mapped.getLong(position) >>> offset;
+		if(offset + slotBits > 64) {
+			value |= mapped.getLong(position + 8) << (64 - offset);
+		}
+		return (int)(value & ((1L << slotBits) - 1));
+	}
+
+	private static long rankCount(long words) {
+		return (words + RANK_INTERVAL - 1) / RANK_INTERVAL;
+	}
+
+	private static long position(long hash, int level, long size) {
+		return (mix(hash + (level + 1) * 0x9e3779b97f4a7c15L) & Long.MAX_VALUE) % size;
+	}
+
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * Hash the UTF-8 bytes of a word.
+	 */
+	public static long hash(byte[] word, int length) {
+		long hash = 0xcbf29ce484222325L;
+
+		for(int i = 0; i < length; i++) {
+			hash ^= word[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * Build the hash and write it after the restart table.
+	 * @param output The index file
+	 * @param hashes The hashes of the words in the order of the slots
+	 * @param count The number of the words
+	 */
+	public static void write(DataOutput output, long[] hashes, int count) throws IOException {
+		List<long[]> levels;
+		long[] placedBits, ranks, slots;
+		int[] remaining, next;
+		int remainingCount, slotBits, leftovers;
+		long bitCount;
+
+		/* the place of every word as the number of the bit */
+		placedBits = new long[count];
+		levels = new ArrayList<long[]>();
+
+		remaining = new int[count];
+		for(int i = 0; i < count; i++) {
+			remaining[i] = i;
+		}
+		remainingCount = count;
+		bitCount = 0;
+
+		while(remainingCount > 0 && levels.size() < MAX_LEVELS) {
+			long size = ((long)remainingCount * GAMMA + 63) / 64 * 64;
+			long[] seen = new long[(int)(size / 64)];
+			long[] collided = new long[seen.length];
+			int level = levels.size();
+			int nextCount = 0;
+
+			for(int i = 0; i < remainingCount; i++) {
+				long bit = position(hashes[remaining[i]], level, size);
+				long mask = 1L << (bit & 63);
+				int word = (int)(bit >>> 6);
+
+				if((seen[word] & mask) != 0) {
+					collided[word] |= mask;
+				}
+				seen[word] |= mask;
+			}
+			for(int i = 0; i < seen.length; i++) {
+				seen[i] &= ~collided[i];
+			}
+
+			/* the words that collided are tried on the next level */
+			next = new int[remainingCount];
+			for(int i = 0; i < remainingCount; i++) {
+				long bit = position(hashes[remaining[i]], level, size);
+
+				if((collided[(int)(bit >>> 6)] & (1L << (bit & 63))) != 0) {
+					next[nextCount++] = remaining[i];
+				} else {
+					placedBits[remaining[i]] = bitCount + bit;
+				}
+			}
+
+			levels.add(seen);
+			bitCount += size;
+			remaining = next;
+			remainingCount = nextCount;
+		}
+		leftovers = remainingCount;
+		for(int i = 0; i < leftovers; i++) {
+			placedBits[remaining[i]] = -1;
+		}
+
+		/* the ranks are counted over all levels */
+		ranks = new long[(int)rankCount(bitCount / 64)];
+		long rank = 0, index = 0;
+		for(long[] level : levels) {
+			for(long word : level) {
+				if(index % RANK_INTERVAL == 0) {
+					ranks[(int)(index / RANK_INTERVAL)] = rank;
+				}
+				rank += Long.bitCount(word);
+				index++;
+			}
+		}
+
+		slotBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(0, count - 1)));
+		slots = new long[(int)(((long)count * slotBits + 63) / 64)];
+		for(int slot = 0; slot < count; slot++) {
+			if(placedBits[slot] >= 0) {
+				setSlot(slots, slotBits, rankOf(levels, ranks, placedBits[slot]), slot);
+			}
+		}
+
+		output.write(SIGNATURE);
+		output.writeInt(count);
+		output.writeInt(levels.size());
+		output.writeInt(leftovers);
+		output.writeInt(slotBits);
+		for(long[] level : levels) {
+			output.writeLong((long)level.length * 64);
+		}
+		for(long[] level : levels) {
+			for(long word : level) {
+				output.writeLong(word);
+			}
+		}
+		for(long value : ranks) {
+			output.writeInt((int)value);
+		}
+		for(long value : slots) {
+			output.writeLong(value);
+		}
+	}
+
+	private static long rankOf(List<long[]> levels, long[] ranks, long bit) {
+		long word = bit >>> 6;
+		long first = word / RANK_INTERVAL * RANK_INTERVAL;
+		long rank = ranks[(int)(word / RANK_INTERVAL)];
+
+		for(long i = first; i < word; i++) {
+			rank += Long.bitCount(getWord(levels, i));
+		}
+		return rank + Long.bitCount(getWord(levels, word) & ((1L << (bit & 63)) - 1));
+	}
+
+	private static long getWord(List<long[]> levels, long index) {
+		for(long[] level : levels) {
+			if(index < level.length) {
+				return level[(int)index];
+			}
+			index -= level.length;
+		}
+		throw new IndexOutOfBoundsException();
+	}
+
+	private static void setSlot(long[] slots, int slotBits, long index, long value) {
+		long bit = index * slotBits;
+		int word = (int)(bit >>> 6);
+		int offset = (int)(bit & 63);
+
+		slots[word] |= value << offset;
+		if(offset + slotBits > 64) {
+			slots[word + 1] |= value >>> (64 - offset);
+		}
+	}
+}
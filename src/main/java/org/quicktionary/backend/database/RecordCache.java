@@ -0,0 +1,234 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The records that were read last, kept outside of the Java heap.
+ * The records are already decompressed, so a page that falls out
+ * of the PageCache only has to be decoded again.
+ *
+ * The memory is allocated as direct buffers of one megabyte. The
+ * records are appended to the slabs in turn, and when all of them
+ * are full the oldest slab is emptied as a whole. This way the
+ * cache never has to find a free place for a record.
+ *
+ * The records are decoded straight from the slabs. Every slab counts
+ * the records that are taken from it and not yet released. A slab that
+ * still has them isn't written over, it is left to the readers and a
+ * new slab takes its place.
+ */
+public class RecordCache {
+	private final static int SLAB_SIZE = 1024 * 1024;
+
+	private ByteBuffer[] slabs;
+	private AtomicInteger[] slabReaders;
+	private List<List<Long>> slabRecords;
+	private HashMap<Long, Long> locations;
+	private int current;
+
+	private long hits, misses, evictions;
+
+	/**
+	 * @param capacity The size of the cache in bytes
+	 */
+	public RecordCache(long capacity) {
+		locations = new HashMap<Long, Long>();
+		setCapacity(capacity);
+	}
+
+	/**
+	 * A record in a slab. The slab isn't reused before the
+	 * record is released.
+	 */
+	protected final static class Record {
+		private final ByteBuffer buffer;
+		private final AtomicInteger readers;
+
+		private Record(ByteBuffer buffer, AtomicInteger readers) {
+			this.buffer = buffer;
+			this.readers = readers;
+		}
+
+		/**
+		 * Get the read only view to the record. The first byte of the
+		 * record has its flags and the rest is the record that isn't
+		 * compressed.
+		 */
+		public ByteBuffer getBuffer() {
+			return buffer;
+		}
+
+		/**
+		 * Let the slab be reused. The buffer must not be used after this.
+		 */
+		public void release() {
+			readers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the record. It must be released after it is decoded.
+	 * @param address The address of the record in the data store
+	 * @return The record or null if it isn't in the cache
+	 */
+	protected synchronized Record get(long address) {
+		ByteBuffer view;
+		Long location;
+		int slab, offset, size;
+
+		location = locations.get(address);
+		if(location == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+
+		slab = (int)(location >>> 32);
+		slabReaders[slab].incrementAndGet();
+
+		view = slabs[slab].asReadOnlyBuffer();
+		offset = (int)(long)location;
+		size = view.getInt(offset);
+		view.position(offset + 4);
+		view.limit(offset + 4 + size);
+		return new Record(view.slice(), slabReaders[slab]);
+	}
+
+	/**
+	 * Add the record to the cache.
+	 * @param address The address of the record in the data store
+	 * @param flags The flags of the record without the compression flag
+	 * @param record The record that isn't compressed
+	 */
+	protected synchronized void put(long address, int flags, ByteBuffer record) {
+		ByteBuffer slab;
+		int size, offset;
+
+		size = 4 + 1 + record.remaining();
+		if(slabs.length == 0 || size > SLAB_SIZE || locations.containsKey(address)) {
+			return;
+		}
+
+		slab = slabs[current];
+		if(slab == null || slab.remaining() < size) {
+			slab = nextSlab();
+		}
+
+		offset = slab.position();
+		slab.putInt(size - 4);
+		slab.put((byte)flags);
+		slab.put(record.duplicate());
+
+		slabRecords.get(current).add(address);
+		locations.put(address, ((long)current << 32) | offset);
+	}
+
+	/**
+	 * Move to the next slab. If it is in use, its records are removed.
+	 */
+	private ByteBuffer nextSlab() {
+		List<Long> records;
+
+		if(slabs[current] != null) {
+			current = (current + 1) % slabs.length;
+		}
+		if(slabs[current] == null) {
+			slabs[current] = ByteBuffer.allocateDirect(SLAB_SIZE);
+			return slabs[current];
+		}
+
+		records = slabRecords.get(current);
+		for(Long address : records) {
+			locations.remove(address);
+		}
+		evictions += records.size();
+		records.clear();
+
+		emptySlab(current);
+		return slabs[current];
+	}
+
+	/**
+	 * Empty the slab whose records can't be found anymore. If some of
+	 * its records are still being decoded, the slab is replaced.
+	 */
+	private void emptySlab(int slab) {
+		if(slabReaders[slab].get() == 0) {
+			slabs[slab].clear();
+			return;
+		}
+		slabs[slab] = ByteBuffer.allocateDirect(SLAB_SIZE);
+		slabReaders[slab] = new AtomicInteger();
+	}
+
+	/**
+	 * Set the size of the cache. The records that are
+	 * in the cache are removed.
+	 * @param capacity The size of the cache in bytes
+	 */
+	public synchronized void setCapacity(long capacity) {
+		int count = (int)Math.min(capacity / SLAB_SIZE, Integer.MAX_VALUE);
+
+		/* the old slabs aren't reused, so their records can be decoded */
+		slabs = new ByteBuffer[Math.max(0, count)];
+		slabReaders = new AtomicInteger[slabs.length];
+		slabRecords = new ArrayList<List<Long>>();
+		for(int i = 0; i < slabs.length; i++) {
+			slabReaders[i] = new AtomicInteger();
+			slabRecords.add(new ArrayList<Long>());
+		}
+		locations.clear();
+		current = 0;
+	}
+
+	public synchronized long getCapacity() {
+		return (long)slabs.length * SLAB_SIZE;
+	}
+
+	public synchronized int getRecordCount() {
+		return locations.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized void clear() {
+		locations.clear();
+		for(int i = 0; i < slabs.length; i++) {
+			slabRecords.get(i).clear();
+			if(slabs[i] != null) {
+				emptySlab(i);
+			}
+		}
+		current = 0;
+	}
+}
@@ -0,0 +1,225 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the records of the data store with deflate. The records
+ * are compressed one by one, so a single page can be read without
+ * reading anything else. The small records compress badly alone, so
+ * the compressor uses a preset dictionary that contains the strings
+ * that are common in the pages: headers, templates, language names.
+ */
+class RecordCompressor {
+	protected final static int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	private final static int MIN_LINE_LENGTH = 4;
+	private final static int MAX_LINE_LENGTH = 256;
+
+	private byte[] dictionary;
+	private Deflater deflater;
+	private ThreadLocal<Inflater> inflaters;
+
+	/**
+	 * Create the compressor.
+	 * @param dictionary The preset dictionary or null
+	 */
+	public RecordCompressor(byte[] dictionary) {
+		this.dictionary = dictionary;
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		this.inflaters = new ThreadLocal<Inflater>() {
+			protected Inflater initialValue() {
+				return new Inflater();
+			}
+		};
+	}
+
+	public byte[] getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Compress the record.
+	 * @param data The record
+	 * @return The compressed record or null if it didn't get smaller
+	 */
+	public synchronized byte[] compress(byte[] data) {
+		byte[] output = new byte[data.length];
+		int length = 0;
+
+		deflater.reset();
+		if(dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(data);
+		deflater.finish();
+
+		while(!deflater.finished()) {
+			if(length == output.length) {
+				return null;
+			}
+			length += deflater.deflate(output, length, output.length - length);
+		}
+		return Arrays.copyOf(output, length);
+	}
+
+	/**
+	 * Decompress the record. Any number of threads can
+	 * call this at the same time.
+	 *
+	 * @param input The compressed data
+	 * @param rawLength The length of the original record, as it was read from the file
+	 * @return The record
+	 */
+	public ByteBuffer decompress(ByteBuffer input, int rawLength) throws IOException {
+		Inflater inflater;
+		byte[] output;
+		int length = 0;
+
+		/* deflate can't compress more than about thousand times */
+		if(rawLength < 0 || rawLength > 1032L * input.remaining() + 1024) {
+			throw new IOException("The length of the record is invalid.");
+		}
+		inflater = inflaters.get();
+		output = new byte[rawLength];
+
+		inflater.reset();
+		if(input.hasArray()) {
+			inflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+		} else {
+			byte[] bytes = new byte[input.remaining()];
+			input.duplicate().get(bytes);
+			inflater.setInput(bytes);
+		}
+
+		try {
+			while(length < rawLength) {
+				int count = inflater.inflate(output, length, rawLength - length);
+
+				if(count == 0 && inflater.needsDictionary()) {
+					if(dictionary == null) {
+						throw new IOException("The record needs a dictionary.");
+					}
+					inflater.setDictionary(dictionary);
+				} else if(count == 0) {
+					break;
+				}
+				length += count;
+			}
+		} catch(DataFormatException exception) {
+			throw new IOException("The compressed record is corrupted.", exception);
+		}
+
+		if(length != rawLength) {
+			throw new IOException("The compressed record is truncated.");
+		}
+		return ByteBuffer.wrap(output);
+	}
+
+	/**
+	 * Build a dictionary from sample records. The dictionary consists
+	 * of the lines that are found in many records. The most useful
+	 * lines are put to the end of the dictionary, because deflate can
+	 * refer to them with the shortest distances.
+	 *
+	 * @param samples The records
+	 * @return The dictionary or null if the samples don't have common lines
+	 */
+	public static byte[] train(List<byte[]> samples) {
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		List<String> lines;
+		StringBuilder dictionary;
+		int size, count;
+
+		/* count in how many records each line exists. The bytes are
+		 * decoded as Latin-1 so that every byte maps to one char */
+		for(byte[] sample : samples) {
+			Set<String> seen = new HashSet<String>();
+
+			for(String line : latin1(sample).split("\n")) {
+				if(line.length() < MIN_LINE_LENGTH || line.length() > MAX_LINE_LENGTH) {
+					continue;
+				}
+				if(seen.add(line)) {
+					Integer previous = counts.get(line);
+					counts.put(line, (previous == null) ? 1 : previous + 1);
+				}
+			}
+		}
+
+		lines = new ArrayList<String>();
+		for(Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if(entry.getValue() > 1) {
+				lines.add(entry.getKey());
+			}
+		}
+		if(lines.isEmpty()) {
+			return null;
+		}
+
+		/* the lines that save the most bytes come first */
+		Collections.sort(lines, new Comparator<String>() {
+			public int compare(String a, String b) {
+				long scoreA = (long)counts.get(a) * a.length();
+				long scoreB = (long)counts.get(b) * b.length();
+				return (scoreA < scoreB) ? 1 : (scoreA > scoreB) ? -1 : a.compareTo(b);
+			}
+		});
+
+		size = 0;
+		count = 0;
+		while(count < lines.size() && size + lines.get(count).length() + 1 <= MAX_DICTIONARY_SIZE) {
+			size += lines.get(count).length() + 1;
+			count++;
+		}
+
+		dictionary = new StringBuilder(size);
+		for(int i = count - 1; i >= 0; i--) {
+			dictionary.append(lines.get(i));
+			dictionary.append('\n');
+		}
+
+		try {
+			return dictionary.toString().getBytes("ISO-8859-1");
+		} catch(UnsupportedEncodingException exception) {
+			throw new Error("Your runtime doesn't support ISO-8859-1.");
+		}
+	}
+
+	private static String latin1(byte[] bytes) {
+		try {
+			return new String(bytes, "ISO-8859-1");
+		} catch(UnsupportedEncodingException exception) {
+			throw new Error("Your runtime doesn't support ISO-8859-1.");
+		}
+	}
+}
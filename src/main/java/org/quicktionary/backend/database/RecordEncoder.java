@@ -0,0 +1,173 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The buffer that the records are encoded to. The strings and the
+ * nodes are written straight to the buffer without the temporary
+ * arrays, and the buffer grows when a record doesn't fit to it.
+ *
+ * The data store keeps one direct buffer for the records that are
+ * written, so they go to the file without copying them on the heap.
+ */
+final class RecordEncoder {
+	private ByteBuffer buffer;
+	private boolean direct;
+
+	/**
+	 * @param capacity The first size of the buffer
+	 * @param direct True if the buffer is outside of the Java heap
+	 */
+	public RecordEncoder(int capacity, boolean direct) {
+		this.direct = direct;
+		this.buffer = allocate(Math.max(16, capacity));
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	/**
+	 * Make room for more bytes after the position.
+	 */
+	private void ensure(int length) {
+		ByteBuffer larger;
+
+		if(buffer.remaining() >= length) {
+			return;
+		}
+		larger = allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+		buffer.flip();
+		larger.put(buffer);
+		buffer = larger;
+	}
+
+	public int position() {
+		return buffer.position();
+	}
+
+	/**
+	 * Move the position back to drop the bytes after it,
+	 * or forward to leave room for a header.
+	 */
+	public void position(int position) {
+		if(position > buffer.position()) {
+			ensure(position - buffer.position());
+		}
+		buffer.position(position);
+	}
+
+	public void clear() {
+		buffer.clear();
+	}
+
+	public void putByte(int value) {
+		ensure(1);
+		buffer.put((byte)value);
+	}
+
+	public void putByte(int index, int value) {
+		buffer.put(index, (byte)value);
+	}
+
+	public void putInt(int value) {
+		ensure(4);
+		buffer.putInt(value);
+	}
+
+	/**
+	 * Fill in a length that was left empty.
+	 */
+	public void putInt(int index, int value) {
+		buffer.putInt(index, value);
+	}
+
+	public void putLong(long value) {
+		ensure(8);
+		buffer.putLong(value);
+	}
+
+	public void putVarInt(long value) {
+		ensure(10);
+		VarInt.write(buffer, value);
+	}
+
+	public void putBytes(byte[] bytes, int offset, int length) {
+		ensure(length);
+		buffer.put(bytes, offset, length);
+	}
+
+	/**
+	 * Write the string with its length as varint.
+	 */
+	public void putString(String string) {
+		int length = Utf8.length(string);
+
+		putVarInt(length);
+		ensure(length);
+		Utf8.encode(string, buffer);
+	}
+
+	/**
+	 * Write the string with its length as four bytes,
+	 * like the word and the source of a record.
+	 */
+	public void putIntString(String string) {
+		int length = Utf8.length(string);
+
+		putInt(length);
+		ensure(length);
+		Utf8.encode(string, buffer);
+	}
+
+	/**
+	 * Write the UTF-8 bytes of the string without the length.
+	 */
+	public void putUtf8(String string) {
+		ensure(Utf8.length(string));
+		Utf8.encode(string, buffer);
+	}
+
+	/**
+	 * Copy the bytes between the positions.
+	 */
+	public byte[] toByteArray(int start, int end) {
+		ByteBuffer view = buffer.duplicate();
+		byte[] bytes = new byte[end - start];
+
+		view.limit(end);
+		view.position(start);
+		view.get(bytes);
+		return bytes;
+	}
+
+	public byte[] toByteArray() {
+		return toByteArray(0, buffer.position());
+	}
+
+	/**
+	 * Get a view to the bytes before the position.
+	 */
+	public ByteBuffer view() {
+		ByteBuffer view = buffer.duplicate();
+
+		view.flip();
+		return view;
+	}
+}
@@ -0,0 +1,143 @@
+/* Quicktionary backend - The data structure for the word information
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.util.Map;
+import java.util.NavigableMap;
+
+import org.quicktionary.backend.WordEntry;
+
+/**
+ * The position of one prefix search. The words of the index file and
+ * the changed words are merged in the sorted order. Every query has
+ * its own cursor, so any number of searches can run at the same time.
+ */
+public class SearchCursor {
+	private WordDatabase database;
+	private String prefix, last;
+	private byte[] prefixBytes;
+
+	private IndexTable table;
+	private IndexTable.Cursor cursor;
+	private Map.Entry<String, WordEntryIO> current;
+	private byte[] currentBytes;
+
+	protected SearchCursor(WordDatabase database, String prefix) {
+		this.database = database;
+		this.prefix = prefix;
+		this.prefixBytes = WordDatabase.getBytes(prefix);
+		this.last = null;
+
+		this.table = database.getTable();
+		this.cursor = table.seek(prefixBytes);
+		this.current = database.getMap().ceilingEntry(prefix);
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Fetch the next words that have the prefix.
+	 *
+	 * @param entries The list to be filled
+	 * @param count The number of items wanted
+	 * @return The number of items found
+	 */
+	public synchronized int fetch(WordEntry[] entries, int count) {
+		NavigableMap<String, WordEntryIO> map = database.getMap();
+		int i = 0;
+
+		while(i < count) {
+			int order;
+
+			/* the index was rewritten after the previous call */
+			if(table != database.getTable()) {
+				reposition();
+			}
+
+			/* the changed words after the prefix don't matter */
+			if(current != null && !current.getKey().startsWith(prefix)) {
+				current = null;
+			}
+
+			if(!cursor.isValid()) {
+				order = 1;
+			} else if(current == null) {
+				order = -1;
+			} else {
+				if(currentBytes == null) {
+					currentBytes = WordDatabase.getBytes(current.getKey());
+				}
+				order = cursor.compareTo(currentBytes);
+			}
+
+			/* the word is only in the index file */
+			if(order < 0) {
+				if(!cursor.startsWith(prefixBytes)) break;
+
+				entries[i++] = database.createWordEntry(table, cursor);
+				last = cursor.getWord();
+				cursor.next();
+				continue;
+			}
+
+			if(current == null) break;
+
+			/* the changed word overrides the word in the index file */
+			if(order == 0) {
+				cursor.next();
+			}
+			if(current.getValue() != WordEntryIO.REMOVED) {
+				entries[i++] = current.getValue().data;
+			}
+			last = current.getKey();
+			current = map.higherEntry(current.getKey());
+			currentBytes = null;
+		}
+
+		/* append null terminator to the list */
+		if(i < count) {
+			entries[i] = null;
+		}
+		return i;
+	}
+
+	/**
+	 * Move the position to the new index file.
+	 */
+	private void reposition() {
+		NavigableMap<String, WordEntryIO> map = database.getMap();
+		byte[] lastBytes;
+
+		table = database.getTable();
+		if(last == null) {
+			cursor = table.seek(prefixBytes);
+			current = map.ceilingEntry(prefix);
+			currentBytes = null;
+			return;
+		}
+
+		lastBytes = WordDatabase.getBytes(last);
+		cursor = table.seek(lastBytes);
+		if(cursor.isValid() && cursor.compareTo(lastBytes) == 0) {
+			cursor.next();
+		}
+		current = map.higherEntry(last);
+		currentBytes = null;
+	}
+}
@@ -0,0 +1,155 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The list of the index segments that are used on top of the base
+ * index. The segment files are numbered, and the manifest has the
+ * numbers from the oldest to the newest segment and the number
+ * for the next segment.
+ *
+ * The manifest is written under another name and renamed, so it
+ * always has either the old or the new list of the segments.
+ */
+class SegmentManifest {
+	private final static byte[] MANIFEST_SIGNATURE = {'W', 'S', 'G', 0};
+
+	private File file;
+	private long nextNumber;
+	private List<Long> numbers;
+
+	public SegmentManifest(File file) {
+		this.file = file;
+		this.nextNumber = 1;
+		this.numbers = new ArrayList<Long>();
+	}
+
+	/**
+	 * Get the manifest file that belongs to the data store.
+	 */
+	public static File getManifestFile(File dataStoreFile) {
+		return new File(dataStoreFile.getPath() + ".seg");
+	}
+
+	public File getSegmentFile(long number) {
+		return new File(file.getPath() + "." + number);
+	}
+
+	/**
+	 * Get the numbers of the segments from the oldest to the newest.
+	 */
+	public List<Long> getSegments() {
+		return numbers;
+	}
+
+	/**
+	 * Get the number that the next segment gets. It grows
+	 * with every segment, so it tells if a segment was added.
+	 */
+	public long getNextNumber() {
+		return nextNumber;
+	}
+
+	/**
+	 * Reserve the number for a new segment.
+	 */
+	public long nextSegment() {
+		return nextNumber++;
+	}
+
+	public void read() throws IOException {
+		DataInputStream stream;
+		byte[] signature;
+		int count;
+
+		numbers = new ArrayList<Long>();
+		if(!file.exists()) {
+			return;
+		}
+
+		stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			signature = new byte[MANIFEST_SIGNATURE.length];
+			stream.readFully(signature);
+			if(!Arrays.equals(MANIFEST_SIGNATURE, signature)) {
+				throw new IOException("This is not a segment manifest.");
+			}
+
+			nextNumber = stream.readLong();
+			count = stream.readInt();
+			for(int i = 0; i < count; i++) {
+				numbers.add(stream.readLong());
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Replace the list of the segments.
+	 * @param segments The numbers of the segments from the oldest to the newest
+	 */
+	public void write(List<Long> segments) throws IOException {
+		DataOutputStream stream;
+		FileOutputStream output;
+		File temporary;
+
+		temporary = new File(file.getPath() + ".tmp");
+		output = new FileOutputStream(temporary);
+		stream = new DataOutputStream(new BufferedOutputStream(output));
+		try {
+			stream.write(MANIFEST_SIGNATURE);
+			stream.writeLong(nextNumber);
+			stream.writeInt(segments.size());
+			for(long number : segments) {
+				stream.writeLong(number);
+			}
+			stream.flush();
+			output.getChannel().force(true);
+		} finally {
+			stream.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(),
+		           StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		numbers = new ArrayList<Long>(segments);
+	}
+
+	/**
+	 * Remove the segment files that aren't in the list anymore.
+	 * @param segments The numbers of the removed segments
+	 */
+	public void delete(List<Long> segments) {
+		for(long number : segments) {
+			getSegmentFile(number).delete();
+		}
+	}
+}
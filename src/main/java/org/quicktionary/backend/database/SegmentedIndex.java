@@ -0,0 +1,277 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.quicktionary.backend.WordEntry;
+
+/**
+ * The index that is made of the base index and the segments that were
+ * written at the checkpoints after it. Every segment has only the words
+ * that were changed, and the removed words have the address -1. The
+ * newer segments hide the same words in the older ones.
+ *
+ * The segments are merged together or to the base index by the
+ * compaction, so a lookup only has to check a few files.
+ *
+ * The generation tells which copy of the data store the addresses
+ * point to, because the compaction of the data store moves the records.
+ */
+class SegmentedIndex extends IndexTable {
+	protected final static long REMOVED_ADDRESS = -1;
+
+	private IndexTable base;
+	private List<IndexTable> segments;
+	private IndexTable[] tables;
+	private int generation;
+	private volatile int wordCount;
+
+	/**
+	 * @param base The index that has all the words at some point
+	 * @param segments The segments from the newest to the oldest
+	 * @param generation The generation of the data store
+	 */
+	public SegmentedIndex(IndexTable base, List<IndexTable> segments, int generation) {
+		this.base = base;
+		this.generation = generation;
+		this.wordCount = -1;
+		this.segments = Collections.unmodifiableList(new ArrayList<IndexTable>(segments));
+
+		tables = new IndexTable[segments.size() + 1];
+		segments.toArray(tables);
+		tables[tables.length - 1] = base;
+	}
+
+	public IndexTable getBase() {
+		return base;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Get the segments from the newest to the oldest.
+	 */
+	public List<IndexTable> getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Get the number of the words. The words are counted from the
+	 * merged index when this is called first.
+	 */
+	public int size() {
+		int count = wordCount;
+
+		if(count < 0) {
+			count = 0;
+			for(Cursor cursor = seek(new byte[0]); cursor.isValid(); cursor.next()) {
+				count++;
+			}
+			wordCount = count;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of the entries in the base index and the
+	 * segments. The words that were changed or removed after the
+	 * base index was written are counted more than once.
+	 */
+	public int entryCount() {
+		long count = 0;
+
+		for(IndexTable table : tables) {
+			count += table.entryCount();
+		}
+		return (int)Math.min(count, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Get the number of the entries in the segments.
+	 */
+	public long segmentEntryCount() {
+		long count = 0;
+
+		for(IndexTable segment : segments) {
+			count += segment.entryCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Close the files of the base index and the segments. This isn't
+	 * done by close, because the next index shares the same files.
+	 */
+	public void closeAll() {
+		for(IndexTable table : tables) {
+			table.close();
+		}
+	}
+
+	public Cursor seek(byte[] word) {
+		return new MergedCursor(word, false);
+	}
+
+	public Cursor find(byte[] word) {
+		for(IndexTable table : tables) {
+			Cursor cursor = table.find(word);
+
+			if(cursor != null) {
+				return (cursor.getAddress() != REMOVED_ADDRESS) ? cursor : null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get all the words with the removed ones, so that the
+	 * segments can be merged to a new segment.
+	 * @return The words in the sorted order
+	 */
+	public Iterator<Map.Entry<String, WordEntryIO>> changes() {
+		final Cursor cursor = new MergedCursor(new byte[0], true);
+
+		return new Iterator<Map.Entry<String, WordEntryIO>>() {
+			public boolean hasNext() {
+				return cursor.isValid();
+			}
+
+			public Map.Entry<String, WordEntryIO> next() {
+				WordEntryIO value;
+				String word;
+
+				if(!cursor.isValid()) {
+					throw new NoSuchElementException();
+				}
+
+				word = cursor.getWord();
+				if(cursor.getAddress() == REMOVED_ADDRESS) {
+					value = WordEntryIO.REMOVED;
+				} else {
+					WordEntry entry = new WordEntry(word);
+					entry.setDescription(cursor.getDescription());
+					value = new WordEntryIO(entry, cursor.getAddress());
+				}
+				cursor.next();
+				return new AbstractMap.SimpleImmutableEntry<String, WordEntryIO>(word, value);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * The cursors of all the tables moved together. The cursor
+	 * that has the smallest word is the current one, and the
+	 * newest table wins if many of them have the same word.
+	 */
+	private final class MergedCursor extends Cursor {
+		private Cursor[] cursors;
+		private Cursor current;
+		private boolean removed;
+
+		/**
+		 * @param removed True if the removed words are shown
+		 */
+		private MergedCursor(byte[] word, boolean removed) {
+			this.removed = removed;
+			this.cursors = new Cursor[tables.length];
+
+			for(int i = 0; i < tables.length; i++) {
+				cursors[i] = tables[i].seek(word);
+			}
+			select();
+		}
+
+		private void select() {
+			while(true) {
+				current = null;
+				for(Cursor cursor : cursors) {
+					if(!cursor.isValid()) {
+						continue;
+					}
+					if(current == null || cursor.compareTo(current) < 0) {
+						current = cursor;
+					}
+				}
+
+				if(current == null || removed || current.getAddress() != REMOVED_ADDRESS) {
+					return;
+				}
+				skip();
+			}
+		}
+
+		/**
+		 * Move the cursors that are at the current word. The bytes
+		 * of the current cursor may change when it is moved, so it
+		 * is moved last.
+		 */
+		private void skip() {
+			for(Cursor cursor : cursors) {
+				if(cursor != current && cursor.isValid() && cursor.compareTo(current) == 0) {
+					cursor.next();
+				}
+			}
+			current.next();
+		}
+
+		public boolean isValid() {
+			return current != null;
+		}
+
+		public void next() {
+			skip();
+			select();
+		}
+
+		public String getWord() {
+			return current.getWord();
+		}
+
+		public byte[] getWordBytes() {
+			return current.getWordBytes();
+		}
+
+		public int getWordOffset() {
+			return current.getWordOffset();
+		}
+
+		public int getWordLength() {
+			return current.getWordLength();
+		}
+
+		public String getDescription() {
+			return current.getDescription();
+		}
+
+		public long getAddress() {
+			return current.getAddress();
+		}
+	}
+}
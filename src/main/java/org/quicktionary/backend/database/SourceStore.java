@@ -0,0 +1,181 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.Arrays;
+
+/**
+ * The cold segment for the wiki text of the pages. The pages are
+ * shown from the parsed content, so the source is only read when
+ * somebody asks for it.
+ *
+ * The file has a signature and then the sources as records. Every
+ * record starts with its length and the flags, and the compressed
+ * records have also the original length as varint.
+ */
+class SourceStore {
+	private final static byte[] SOURCE_HEADER_SIGNATURE = {'W', 'S', 'R', 0};
+
+	private File file;
+	private RandomAccessFile store;
+	private RecordCompressor compressor;
+	private boolean compression;
+
+	public SourceStore(File file) {
+		this.file = file;
+		this.store = null;
+		this.compressor = new RecordCompressor(null);
+		this.compression = false;
+	}
+
+	/**
+	 * Get the file of the sources that belongs to the data store.
+	 */
+	public static File getSourceFile(File dataStoreFile) {
+		return new File(dataStoreFile.getPath() + ".src");
+	}
+
+	public void setCompression(boolean enabled) {
+		compression = enabled;
+	}
+
+	/**
+	 * Remove all sources.
+	 */
+	public synchronized void clear() throws IOException {
+		if(store != null) {
+			store.close();
+			store = null;
+		}
+		if(file.exists() && !file.delete()) {
+			throw new IOException("The source file " + file + " couldn't be removed.");
+		}
+	}
+
+	private boolean open(boolean create) throws IOException {
+		byte[] signature;
+
+		if(store != null) {
+			return true;
+		}
+		if(!create && !file.exists()) {
+			return false;
+		}
+
+		store = new RandomAccessFile(file, "rw");
+		if(store.length() == 0) {
+			store.write(SOURCE_HEADER_SIGNATURE);
+			return true;
+		}
+
+		signature = new byte[SOURCE_HEADER_SIGNATURE.length];
+		store.readFully(signature);
+		if(!Arrays.equals(SOURCE_HEADER_SIGNATURE, signature)) {
+			store.close();
+			store = null;
+			throw new IOException("This is not source file of word database");
+		}
+		return true;
+	}
+
+	/**
+	 * Append the source to the end of the file.
+	 * @param source The wiki text of the page
+	 * @return The address of the source
+	 */
+	public synchronized long write(String source) throws IOException {
+		ByteBuffer header;
+		byte[] buffer, compressed;
+		long address;
+
+		try {
+			buffer = source.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException exception) {
+			throw new Error("Your runtime doesn't support UTF-8.");
+		}
+
+		open(true);
+		address = store.length();
+		store.seek(address);
+
+		compressed = compression ? compressor.compress(buffer) : null;
+
+		header = ByteBuffer.allocate(4 + 1 + 5);
+		if(compressed != null) {
+			header.putInt(1 + VarInt.size(buffer.length) + compressed.length);
+			header.put((byte)DataStoreIO.RECORD_COMPRESSED);
+			VarInt.write(header, buffer.length);
+			buffer = compressed;
+		} else {
+			header.putInt(1 + buffer.length);
+			header.put((byte)0);
+		}
+
+		store.write(header.array(), 0, header.position());
+		store.write(buffer);
+		return address;
+	}
+
+	/**
+	 * Flush the sources to the disk before the records that refer to them.
+	 */
+	public synchronized void force() throws IOException {
+		if(store != null) {
+			store.getChannel().force(false);
+		}
+	}
+
+	/**
+	 * Read the source from the file.
+	 * @param address The address of the source
+	 * @return The wiki text of the page
+	 */
+	public synchronized String read(long address) throws IOException {
+		ByteBuffer record;
+		byte[] buffer;
+		int size;
+
+		if(!open(false)) {
+			throw new IOException("The source file " + file + " is missing.");
+		}
+
+		store.seek(address);
+		size = store.readInt();
+		if(size < 1 || address + 4 + size > store.length()) {
+			throw new IOException("The source record is corrupted.");
+		}
+		buffer = new byte[size];
+		store.readFully(buffer);
+		record = ByteBuffer.wrap(buffer);
+
+		try {
+			if((record.get() & DataStoreIO.RECORD_COMPRESSED) != 0) {
+				int rawLength = VarInt.readInt(record);
+				record = compressor.decompress(record, rawLength);
+			}
+		} catch(BufferUnderflowException exception) {
+			throw new IOException("The source record is corrupted.", exception);
+		}
+		return TextNodeIO.decodeString(record, record.remaining());
+	}
+}
@@ -0,0 +1,73 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The short strings that the decoded pages of a database share,
+ * like the names of the templates and the links. Only the strings
+ * that were used last are kept, so the strings of the pages that
+ * aren't read anymore can be collected.
+ */
+class StringInterner {
+	/* the longer strings are rarely the same in many pages */
+	private final static int MAX_STRING_LENGTH = 32;
+
+	private final LinkedHashMap<String, String> strings;
+	private final int capacity;
+
+	/**
+	 * @param capacity The number of the strings that are kept
+	 */
+	public StringInterner(int capacity) {
+		this.strings = new LinkedHashMap<String, String>(256, 0.75f, true);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get the shared copy of the string.
+	 * @param string The decoded string
+	 * @return The shared string or the string itself if it isn't shared
+	 */
+	public synchronized String intern(String string) {
+		Iterator<String> iter;
+		String common;
+
+		if(string == null || string.length() > MAX_STRING_LENGTH) {
+			return string;
+		}
+
+		common = strings.get(string);
+		if(common != null) {
+			return common;
+		}
+		strings.put(string, string);
+
+		if(strings.size() > capacity) {
+			iter = strings.keySet().iterator();
+			iter.next();
+			iter.remove();
+		}
+		return string;
+	}
+
+	public synchronized int size() {
+		return strings.size();
+	}
+}
@@ -0,0 +1,257 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.quicktionary.backend.TextNode;
+
+/**
+ * The node trees that are shared by many pages, like the template
+ * blocks and the pronunciation sections. A tree is encoded on its own,
+ * and the pages refer to it by its address in the file.
+ *
+ * A tree is stored the second time it is written, so the trees that
+ * are only in one page stay in the page. The trees are found by their
+ * hashes, so a tree is encoded only when its hash was seen before,
+ * and the bytes are compared before a page refers to a stored tree.
+ *
+ * The file has a signature and then the trees as records. Every
+ * record has its length, the hash and the encoded tree. The trees are
+ * read with positional reads, so the readers don't wait for each
+ * other. The file only grows, the compaction of the data store
+ * doesn't remove the trees that no page uses anymore.
+ */
+class SubtreeStore {
+	private final static byte[] SUBTREE_HEADER_SIGNATURE = {'W', 'S', 'T', 0};
+	private final static int MAX_SEEN_TREES = 256 * 1024;
+	private final static long CACHE_SIZE = 4 * 1024 * 1024;
+
+	private File file;
+	private volatile RandomAccessFile store;
+
+	/* the addresses of the stored trees by their hashes */
+	private Map<Long, Long> addresses;
+
+	/* the hashes of the trees that were written once */
+	private Set<Long> seen;
+
+	private LinkedHashMap<Long, byte[]> cache;
+	private long cacheSize;
+
+	public SubtreeStore(File file) {
+		this.file = file;
+		this.store = null;
+		this.addresses = new HashMap<Long, Long>();
+		this.seen = new HashSet<Long>();
+		this.cache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+		this.cacheSize = 0;
+	}
+
+	/**
+	 * Get the file of the shared trees that belongs to the data store.
+	 */
+	public static File getSubtreeFile(File dataStoreFile) {
+		return new File(dataStoreFile.getPath() + ".sub");
+	}
+
+	/**
+	 * Remove all trees.
+	 */
+	public synchronized void clear() throws IOException {
+		if(store != null) {
+			store.close();
+			store = null;
+		}
+		addresses.clear();
+		seen.clear();
+		synchronized(cache) {
+			cache.clear();
+			cacheSize = 0;
+		}
+		if(file.exists() && !file.delete()) {
+			throw new IOException("The subtree file " + file + " couldn't be removed.");
+		}
+	}
+
+	/**
+	 * Open the file and find the hashes of the stored trees.
+	 */
+	private boolean open(boolean create) throws IOException {
+		byte[] signature;
+		long address, length;
+
+		if(store != null) {
+			return true;
+		}
+		if(!create && !file.exists()) {
+			return false;
+		}
+
+		store = new RandomAccessFile(file, "rw");
+		if(store.length() == 0) {
+			store.write(SUBTREE_HEADER_SIGNATURE);
+			return true;
+		}
+
+		signature = new byte[SUBTREE_HEADER_SIGNATURE.length];
+		store.readFully(signature);
+		if(!Arrays.equals(SUBTREE_HEADER_SIGNATURE, signature)) {
+			store.close();
+			store = null;
+			throw new IOException("This is not subtree file of word database");
+		}
+
+		/* the broken end of the file is written over */
+		length = store.length();
+		address = SUBTREE_HEADER_SIGNATURE.length;
+		while(address + 4 + 8 <= length) {
+			int size = store.readInt();
+
+			if(size < 8 || address + 4 + size > length) {
+				break;
+			}
+			addresses.put(store.readLong(), address);
+			address += 4 + size;
+			store.seek(address);
+		}
+		store.setLength(address);
+		return true;
+	}
+
+	/**
+	 * Get the address of the tree, if it is shared.
+	 * @param hash The hash of the tree
+	 * @param node The root of the tree
+	 * @return The address or -1 if the tree is kept in the page
+	 */
+	public synchronized long share(long hash, TextNode node) throws IOException {
+		byte[] tree;
+		Long address;
+
+		open(true);
+		address = addresses.get(hash);
+		if(address != null) {
+			return Arrays.equals(TextNodeIO.encodeData(node), read(address)) ? address : -1;
+		}
+
+		/* the first copy stays in the page */
+		if(seen.size() >= MAX_SEEN_TREES) {
+			seen.clear();
+		}
+		if(seen.add(hash)) {
+			return -1;
+		}
+		seen.remove(hash);
+
+		tree = TextNodeIO.encodeData(node);
+		address = store.length();
+		store.seek(address);
+		store.writeInt(8 + tree.length);
+		store.writeLong(hash);
+		store.write(tree);
+		addresses.put(hash, address);
+		return address;
+	}
+
+	/**
+	 * Read the encoded tree.
+	 * @param address The address of the tree
+	 * @return The encoded tree that must not be changed
+	 */
+	public byte[] read(long address) throws IOException {
+		RandomAccessFile current;
+		FileChannel channel;
+		byte[] tree;
+		int size;
+
+		synchronized(cache) {
+			tree = cache.get(address);
+		}
+		if(tree != null) {
+			return tree;
+		}
+
+		current = store;
+		if(current == null) {
+			synchronized(this) {
+				if(!open(false)) {
+					throw new IOException("The subtree file " + file + " is missing.");
+				}
+				current = store;
+			}
+		}
+
+		/* the length and the hash are before the tree */
+		channel = current.getChannel();
+		size = readFully(channel, ByteBuffer.allocate(4 + 8), address).getInt();
+		if(size < 8 || address + 4 + size > channel.size()) {
+			throw new IOException("The subtree record is corrupted.");
+		}
+		tree = new byte[size - 8];
+		readFully(channel, ByteBuffer.wrap(tree), address + 4 + 8);
+
+		/* the trees that were used last are kept */
+		synchronized(cache) {
+			if(cache.put(address, tree) == null) {
+				cacheSize += tree.length;
+			}
+			for(Iterator<byte[]> iter = cache.values().iterator(); cacheSize > CACHE_SIZE && iter.hasNext();) {
+				cacheSize -= iter.next().length;
+				iter.remove();
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Read the bytes at the position without moving the file pointer.
+	 * @return The buffer that is flipped for reading
+	 */
+	private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int count = channel.read(buffer, position);
+			if(count < 0) {
+				throw new EOFException("The subtree is outside of the file");
+			}
+			position += count;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Flush the trees to the disk before the pages that refer to them.
+	 */
+	public synchronized void force() throws IOException {
+		if(store != null) {
+			store.getChannel().force(false);
+		}
+	}
+}
@@ -18,46 +18,216 @@ package org.quicktionary.backend.database;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.io.DataOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutput;
-import java.io.DataInput;
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.quicktionary.backend.TextNode;
 
+/**
+ * Encodes the TextNode trees for the data store.
+ *
+ * The current format starts with a version byte. Every node has
+ * a varint tag that contains the type and two flags, and the rest
+ * of the node depends on the flags:
+ * <pre>
+ * tag             type &lt;&lt; 2 | HAS_TEXT | HAS_PARAMETER
+ * parameter       varint length and UTF-8 bytes, if HAS_PARAMETER
+ * text            varint length and UTF-8 bytes, if HAS_TEXT
+ * childCount      varint and the child nodes, if not HAS_TEXT
+ * </pre>
+ * The nodes of the first format used four byte ints for everything.
+ * Its data starts with the high byte of the root node's type, which
+ * is always zero, so the old records are still readable.
+ *
+ * The pages that repeat the same parameters or texts, like template
+ * names and link targets, are written in the string table format.
+ * The repeated strings are written once after the version byte as a
+ * varint count and the strings, and the nodes refer to them:
+ * <pre>
+ * string          varint index &lt;&lt; 1 | 1 to the table, or
+ *                 varint length &lt;&lt; 1 and UTF-8 bytes
+ * </pre>
+ * The short strings of the tables and the parameters are shared
+ * between the pages of the database with its StringInterner, so the
+ * same template name is in the memory once.
+ *
+ * The pages that have trees in the SubtreeStore are written in the
+ * shared tree format. It has the string table, and the tags of the
+ * nodes have three flags. The shared tree is only a tag with the
+ * IS_SHARED flag and the varint address of the tree in the store.
+ */
 class TextNodeIO {
+	private final static int LEGACY_FORMAT = 0;
+	private final static int COMPACT_FORMAT = 1;
+	private final static int STRING_TABLE_FORMAT = 2;
+	private final static int SHARED_TREE_FORMAT = 3;
+
+	private final static int HAS_PARAMETER = 1;
+	private final static int HAS_TEXT = 2;
+	private final static int FLAG_BITS = 2;
+	private final static int IS_SHARED = 4;
+	private final static int SHARED_FLAG_BITS = 3;
+
+	/* the smaller trees are cheaper to keep in the page */
+	private final static int MIN_SHARED_SIZE = 128;
+
+	private final static int TABLE_REFERENCE = 1;
+	private final static int MIN_TABLE_STRING_LENGTH = 2;
+
 	protected static TextNode decodeData(byte[] buffer) {
-		DataInputStream input;
+		return decodeData(ByteBuffer.wrap(buffer));
+	}
 
+	/**
+	 * Decode the node tree straight from the buffer. The buffer
+	 * may be a view to a memory mapped file.
+	 */
+	protected static TextNode decodeData(ByteBuffer buffer) {
+		return decodeData(buffer, null, null);
+	}
+
+	/**
+	 * @param subtrees The store of the shared trees or null if there isn't one
+	 * @param strings The strings that the pages share or null
+	 */
+	protected static TextNode decodeData(ByteBuffer buffer, SubtreeStore subtrees, StringInterner strings) {
 		try {
-			input = new DataInputStream(new ByteArrayInputStream(buffer));
-			return readTextNode(input, null);
+			switch(buffer.get(buffer.position())) {
+			case LEGACY_FORMAT:
+				return readLegacyTextNode(buffer, null);
+			case COMPACT_FORMAT:
+				buffer.get();
+				return readTextNode(buffer, null, null, null, strings);
+			case STRING_TABLE_FORMAT:
+				buffer.get();
+				return readTextNode(buffer, null, readStringTable(buffer, strings), null, strings);
+			case SHARED_TREE_FORMAT:
+				buffer.get();
+				if(subtrees == null) {
+					System.out.println("The shared trees of the data are missing");
+					return null;
+				}
+				return readTextNode(buffer, null, readStringTable(buffer, strings), subtrees, strings);
+			default:
+				System.out.println("Unknown format of the data");
+				return null;
+			}
 
 		} catch(UnsupportedEncodingException exception) {
 		} catch(IOException exception) {
+			System.out.println("Failed to read the shared tree " + exception);
+		} catch(IndexOutOfBoundsException exception) {
+			System.out.println("Failed to decode the data");
+		} catch(BufferUnderflowException exception) {
 			System.out.println("Failed to decode the data");
 		}
 		return null;
 	}
 
-	private static TextNode readTextNode(DataInput input, TextNode parent) throws IOException {
+	private static String[] readStringTable(ByteBuffer input, StringInterner strings) throws UnsupportedEncodingException {
+		String[] table;
+		int count;
+
+		count = VarInt.readInt(input);
+		if(count < 0 || count > input.remaining()) {
+			throw new BufferUnderflowException();
+		}
+
+		table = new String[count];
+		for(int i = 0; i < count; i++) {
+			table[i] = intern(decodeString(input, VarInt.readInt(input)), strings);
+		}
+		return table;
+	}
+
+	/**
+	 * Read a string of a node.
+	 * @param table The string table or null if the page doesn't have it
+	 */
+	private static String readString(ByteBuffer input, String[] table) throws UnsupportedEncodingException {
+		int value = VarInt.readInt(input);
+
+		if(table == null) {
+			return decodeString(input, value);
+		}
+		if((value & TABLE_REFERENCE) != 0) {
+			return table[value >>> 1];
+		}
+		return decodeString(input, value >>> 1);
+	}
+
+	private static String intern(String string, StringInterner strings) {
+		return (strings != null) ? strings.intern(string) : string;
+	}
+
+	/**
+	 * @param table The string table or null
+	 * @param subtrees The store of the shared trees, only in the shared tree format
+	 * @param strings The strings that the pages share or null
+	 */
+	private static TextNode readTextNode(ByteBuffer input, TextNode parent, String[] table,
+	                                     SubtreeStore subtrees, StringInterner strings) throws IOException {
+		TextNode node;
+		String parameter;
+		int tag, childCount;
+
+		tag = VarInt.readInt(input);
+
+		/* the shared tree is decoded again for every page,
+		 * because the nodes know their parents */
+		if(subtrees != null && (tag & IS_SHARED) != 0) {
+			node = decodeData(ByteBuffer.wrap(subtrees.read(VarInt.readLong(input))), subtrees, strings);
+			if(node == null) {
+				throw new IOException("The shared tree is corrupted.");
+			}
+			if(parent != null) {
+				parent.appendChild(node);
+			}
+			return node;
+		}
+
+		/* read the parameter */
+		parameter = null;
+		if((tag & HAS_PARAMETER) != 0) {
+			parameter = intern(readString(input, table), strings);
+		}
+
+		/* create the node */
+		node = new TextNode(tag >>> ((subtrees != null) ? SHARED_FLAG_BITS : FLAG_BITS), parameter);
+		if(parent != null) {
+			parent.appendChild(node);
+		}
+
+		if((tag & HAS_TEXT) != 0) {
+			node.setTextContent(readString(input, table));
+			return node;
+		}
+
+		/* read the childs */
+		childCount = VarInt.readInt(input);
+		for(int i = 0; i < childCount; i++) {
+			readTextNode(input, node, table, subtrees, strings);
+		}
+		return node;
+	}
+
+	private static TextNode readLegacyTextNode(ByteBuffer input, TextNode parent) throws UnsupportedEncodingException {
 		TextNode node;
 		int length, type, childCount;
 		String parameter;
-		byte[] buffer;
 
-		type = input.readInt();
-		childCount = input.readInt();
+		type = input.getInt();
+		childCount = input.getInt();
 
 		/* read the parameter */
-		length = input.readInt();
-		buffer = new byte[length];
-		input.readFully(buffer);
-		parameter = new String(buffer, "UTF-8");
+		length = input.getInt();
+		parameter = decodeString(input, length);
 
 		/* create the node */
 		node = new TextNode(type, parameter);
@@ -68,10 +238,8 @@ class TextNodeIO {
 		if(childCount == -1) {
 			String textContent;
 
-			length = input.readInt();
-			buffer = new byte[length];
-			input.readFully(buffer);
-			textContent = new String(buffer, "UTF-8");
+			length = input.getInt();
+			textContent = decodeString(input, length);
 			node.setTextContent(textContent);
 
 			return node;
@@ -79,72 +247,306 @@ class TextNodeIO {
 
 		/* read the childs */
 		for(int i = 0; i < childCount; i++) {
-			readTextNode(input, node);
+			readLegacyTextNode(input, node);
 		}
 		return node;
 	}
 
+	/**
+	 * Read UTF-8 string from the current position of the buffer.
+	 * The bytes are copied only if the buffer isn't backed by an array.
+	 *
+	 * @param buffer The buffer to be read
+	 * @param length The length of the string in bytes
+	 * @return The decoded string
+	 */
+	protected static String decodeString(ByteBuffer buffer, int length) throws UnsupportedEncodingException {
+		String string;
+		byte[] bytes;
+
+		if(length < 0 || length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+
+		if(buffer.hasArray()) {
+			string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, "UTF-8");
+			buffer.position(buffer.position() + length);
+			return string;
+		}
+
+		bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
 	protected static byte[] encodeData(TextNode node) {
-		ByteArrayOutputStream stream;
-		DataOutputStream output;
+		RecordEncoder encoder = new RecordEncoder(256, false);
+
+		encodeData(encoder, node);
+		return encoder.toByteArray();
+	}
+
+	/**
+	 * Encode the node tree straight to the buffer of the record.
+	 * Nothing is written for the missing tree.
+	 */
+	protected static void encodeData(RecordEncoder encoder, TextNode node) {
+		encodeData(encoder, node, null);
+	}
+
+	/**
+	 * @param subtrees The store where the large trees are shared or null
+	 */
+	protected static void encodeData(RecordEncoder encoder, TextNode node, SubtreeStore subtrees) {
+		Map<String, Integer> counts, table;
+		Map<TextNode, Long> shared;
 
 		if(node == null) {
-			return new byte[0];
+			return;
 		}
 
-		try {
-			stream = new ByteArrayOutputStream();
-			output = new DataOutputStream(stream);
+		shared = null;
+		if(subtrees != null) {
+			Map<TextNode, Subtree> large = new IdentityHashMap<TextNode, Subtree>();
+
+			summarizeTree(node, large);
+			shared = new IdentityHashMap<TextNode, Long>();
+			try {
+				findSharedTrees(node, subtrees, large, shared);
+			} catch(IOException exception) {
+				System.out.println("Failed to share the trees " + exception);
+			}
+			if(shared.isEmpty()) {
+				shared = null;
+			}
+		}
 
-			writeTextNode(output, node);
+		/* the strings that are repeated go to the table */
+		counts = new HashMap<String, Integer>();
+		countStrings(node, counts, shared);
+		table = new LinkedHashMap<String, Integer>();
+		for(Map.Entry<String, Integer> count : counts.entrySet()) {
+			if(count.getValue() > 1 && count.getKey().length() >= MIN_TABLE_STRING_LENGTH) {
+				table.put(count.getKey(), table.size());
+			}
+		}
 
-			return stream.toByteArray();
+		if(table.isEmpty() && shared == null) {
+			encoder.putByte(COMPACT_FORMAT);
+			writeTextNode(encoder, node, null, null);
+			return;
+		}
 
-		} catch(UnsupportedEncodingException exception) {
-		} catch(IOException exception) {
-			System.out.println("Failed to encode the data");
+		encoder.putByte((shared != null) ? SHARED_TREE_FORMAT : STRING_TABLE_FORMAT);
+		encoder.putVarInt(table.size());
+		for(String string : table.keySet()) {
+			encoder.putString(string);
+		}
+		writeTextNode(encoder, node, table, shared);
+	}
+
+	/**
+	 * Find the trees under the node that other pages have too. The
+	 * large trees are given to the store by their hashes, so a tree
+	 * is encoded on its own only when the store has seen it before.
+	 * The trees under a shared tree aren't looked at.
+	 * @param large The trees that are large enough to be shared
+	 * @param shared The addresses of the shared trees
+	 */
+	private static void findSharedTrees(TextNode node, SubtreeStore subtrees, Map<TextNode, Subtree> large,
+	                                    Map<TextNode, Long> shared) throws IOException {
+		for(TextNode child : node.getChildren()) {
+			Subtree subtree = large.get(child);
+			long address;
+
+			/* the trees under a small tree are smaller */
+			if(subtree == null) {
+				continue;
+			}
+
+			address = subtrees.share(subtree.hash, child);
+			if(address >= 0) {
+				shared.put(child, address);
+			} else {
+				findSharedTrees(child, subtrees, large, shared);
+			}
+		}
+	}
+
+	/**
+	 * The size and the hash of a tree. The tree is walked once from
+	 * the leaves, and the parent gets them from its children.
+	 */
+	private final static class Subtree {
+		private final int size;
+		private final long hash;
+
+		private Subtree(int size, long hash) {
+			this.size = size;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Find the size of the tree in the compact format and the hash
+	 * of the tree.
+	 * @param large The trees that are large enough to be shared
+	 */
+	private static Subtree summarizeTree(TextNode node, Map<TextNode, Subtree> large) {
+		String parameter = node.getParameter();
+		String textContent = node.getTextContent();
+		Subtree subtree;
+		long hash;
+		int size;
+
+		hash = mixHash(node.getType());
+		size = VarInt.size(node.getType() << FLAG_BITS);
+		if(parameter != null) {
+			hash = mixHash(hash ^ hashString(parameter));
+			size += stringSize(parameter);
+		}
+
+		if(textContent != null) {
+			hash = mixHash(hash ^ hashString(textContent) ^ HAS_TEXT);
+			size += stringSize(textContent);
+		} else {
+			size += VarInt.size(node.getChildren().size());
+			for(TextNode child : node.getChildren()) {
+				Subtree childTree = summarizeTree(child, large);
+
+				hash = mixHash(hash ^ childTree.hash);
+				size += childTree.size;
+			}
+		}
+
+		subtree = new Subtree(size, hash);
+		if(size >= MIN_SHARED_SIZE) {
+			large.put(node, subtree);
+		}
+		return subtree;
+	}
+
+	private static int stringSize(String string) {
+		int length = Utf8.length(string);
+
+		return VarInt.size(length) + length;
+	}
+
+	private static long hashString(String string) {
+		long hash = string.length();
+
+		for(int i = 0; i < string.length(); i++) {
+			hash = hash * 31 + string.charAt(i);
 		}
-		return new byte[0];
+		return mixHash(hash);
 	}
 
-	private static void writeTextNode(DataOutput output, TextNode node) throws IOException {
+	private static long mixHash(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * @param shared The shared trees whose strings aren't written or null
+	 */
+	private static void countStrings(TextNode node, Map<String, Integer> counts, Map<TextNode, Long> shared) {
+		String parameter = node.getParameter();
+		String textContent = node.getTextContent();
+
+		if(shared != null && shared.containsKey(node)) {
+			return;
+		}
+
+		if(parameter != null) {
+			countString(parameter, counts);
+		}
+		if(textContent != null) {
+			countString(textContent, counts);
+			return;
+		}
+		for(TextNode child : node.getChildren()) {
+			countStrings(child, counts, shared);
+		}
+	}
+
+	private static void countString(String string, Map<String, Integer> counts) {
+		Integer count = counts.get(string);
+
+		counts.put(string, (count != null) ? count + 1 : 1);
+	}
+
+	/**
+	 * Write a string of a node.
+	 * @param table The indexes of the strings in the table or null
+	 */
+	private static void writeString(RecordEncoder output, String string, Map<String, Integer> table) {
+		Integer index;
+
+		if(table == null) {
+			output.putString(string);
+			return;
+		}
+
+		index = table.get(string);
+		if(index != null) {
+			output.putVarInt(((long)index << 1) | TABLE_REFERENCE);
+		} else {
+			output.putVarInt((long)Utf8.length(string) << 1);
+			output.putUtf8(string);
+		}
+	}
+
+	/**
+	 * @param table The indexes of the strings in the table or null
+	 * @param shared The addresses of the shared trees, only in the shared tree format
+	 */
+	private static void writeTextNode(RecordEncoder output, TextNode node, Map<String, Integer> table,
+	                                  Map<TextNode, Long> shared) {
 		ArrayList<TextNode> childs;
 		String parameter, textContent;
-		byte[] buffer;
-		int childCount;
+		Long address;
+		int tag;
+
+		if(shared != null) {
+			address = shared.get(node);
+			if(address != null) {
+				output.putVarInt(IS_SHARED);
+				output.putVarInt(address);
+				return;
+			}
+		}
 
 		childs = node.getChildren();
 		textContent = node.getTextContent();
 		parameter = node.getParameter();
-		childCount = childs.size();
 
-		/* mark that the node contains only text */
+		tag = node.getType() << ((shared != null) ? SHARED_FLAG_BITS : FLAG_BITS);
+		if(parameter != null) {
+			tag |= HAS_PARAMETER;
+		}
 		if(textContent != null) {
-			childCount = -1;
+			tag |= HAS_TEXT;
 		}
-
-		output.writeInt(node.getType());
-		output.writeInt(childCount);
+		output.putVarInt(tag);
 
 		/* write the parameter */
 		if(parameter != null) {
-			buffer = parameter.getBytes("UTF-8");
-			output.writeInt(buffer.length);
-			output.write(buffer);
-		} else {
-			output.writeInt(0);
+			writeString(output, parameter, table);
 		}
 
 		if(textContent != null) {
-			buffer = textContent.getBytes("UTF-8");
-			output.writeInt(buffer.length);
-			output.write(buffer);
+			writeString(output, textContent, table);
 			return;
 		}
 
-		/* read the childs */
+		/* write the childs */
+		output.putVarInt(childs.size());
 		for(TextNode child : childs) {
-			writeTextNode(output, child);
+			writeTextNode(output, child, table, shared);
 		}
 	}
 }
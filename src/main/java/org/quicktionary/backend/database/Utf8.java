@@ -0,0 +1,162 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the UTF-8 bytes of the words without decoding them, and
+ * encodes the strings straight to the buffers.
+ *
+ * The order is the same as the order of String.compareTo, because
+ * the map of the changed words and the sorter use the strings. The
+ * unsigned bytes are in the order of the code points, and that is
+ * the order of the UTF-16 characters except that the characters
+ * outside of the basic plane are stored as surrogates, which come
+ * before the characters from U+E000 to U+FFFF. Those characters
+ * start with the byte 0xEE or 0xEF in UTF-8 and the others with
+ * 0xF0 or larger, so only that case is turned around.
+ */
+final class Utf8 {
+	private Utf8() {
+	}
+
+	/**
+	 * Compare two words.
+	 * @return Negative, zero or positive like String.compareTo
+	 */
+	public static int compare(byte[] a, int aStart, int aLength, byte[] b, int bStart, int bLength) {
+		int length = Math.min(aLength, bLength);
+
+		for(int i = 0; i < length; i++) {
+			int x = a[aStart + i] & 0xff;
+			int y = b[bStart + i] & 0xff;
+
+			if(x != y) {
+				return order(x, y);
+			}
+		}
+		return aLength - bLength;
+	}
+
+	/**
+	 * Compare a word in the buffer to another word.
+	 * @param buffer The buffer that has the word at its position
+	 * @param aLength The length of the word in the buffer
+	 */
+	public static int compare(ByteBuffer buffer, int aLength, byte[] b) {
+		int start = buffer.position();
+		int length = Math.min(aLength, b.length);
+
+		for(int i = 0; i < length; i++) {
+			int x = buffer.get(start + i) & 0xff;
+			int y = b[i] & 0xff;
+
+			if(x != y) {
+				return order(x, y);
+			}
+		}
+		return aLength - b.length;
+	}
+
+	/**
+	 * Order the first bytes that differ. The bytes before them are
+	 * the same, so they are both at the start of a character or
+	 * both inside of characters of the same length.
+	 */
+	private static int order(int x, int y) {
+		if(x >= 0xf0 && (y == 0xee || y == 0xef)) {
+			return -1;
+		}
+		if(y >= 0xf0 && (x == 0xee || x == 0xef)) {
+			return 1;
+		}
+		return x - y;
+	}
+
+	/**
+	 * Get the number of the UTF-8 bytes of the string. The surrogates
+	 * that aren't in pairs take one byte like in String.getBytes.
+	 */
+	public static int length(String string) {
+		int length = 0;
+
+		for(int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+
+			if(c < 0x80) {
+				length++;
+			} else if(c < 0x800) {
+				length += 2;
+			} else if(Character.isHighSurrogate(c) && i + 1 < string.length() &&
+			          Character.isLowSurrogate(string.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if(Character.isSurrogate(c)) {
+				length++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Encode the string to the buffer. The bytes are the same as
+	 * the bytes of String.getBytes, so the surrogates that aren't
+	 * in pairs are replaced with question marks.
+	 * @param buffer The buffer that has room for length(string) bytes
+	 */
+	public static void encode(String string, ByteBuffer buffer) {
+		for(int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+
+			if(c < 0x80) {
+				buffer.put((byte)c);
+			} else if(c < 0x800) {
+				buffer.put((byte)(0xc0 | (c >> 6)));
+				buffer.put((byte)(0x80 | (c & 0x3f)));
+			} else if(Character.isHighSurrogate(c) && i + 1 < string.length() &&
+			          Character.isLowSurrogate(string.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, string.charAt(++i));
+
+				buffer.put((byte)(0xf0 | (codePoint >> 18)));
+				buffer.put((byte)(0x80 | ((codePoint >> 12) & 0x3f)));
+				buffer.put((byte)(0x80 | ((codePoint >> 6) & 0x3f)));
+				buffer.put((byte)(0x80 | (codePoint & 0x3f)));
+			} else if(Character.isSurrogate(c)) {
+				buffer.put((byte)'?');
+			} else {
+				buffer.put((byte)(0xe0 | (c >> 12)));
+				buffer.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+				buffer.put((byte)(0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	public static boolean startsWith(byte[] word, int start, int length, byte[] prefix) {
+		if(prefix.length > length) {
+			return false;
+		}
+		for(int i = 0; i < prefix.length; i++) {
+			if(word[start + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
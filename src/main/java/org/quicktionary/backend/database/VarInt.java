@@ -0,0 +1,139 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.IOException;
+import java.io.DataOutput;
+import java.io.DataInput;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+
+/**
+ * Variable length encoding for the integers. Every byte stores
+ * seven bits of the value, and the highest bit tells if there
+ * are more bytes. Small values take only one byte.
+ */
+final class VarInt {
+	private VarInt() {
+	}
+
+	/**
+	 * Write an unsigned value.
+	 * @return The number of bytes written
+	 */
+	public static int write(DataOutput output, long value) throws IOException {
+		int count = 1;
+
+		while((value & ~0x7FL) != 0) {
+			output.writeByte((int)(value & 0x7F) | 0x80);
+			value >>>= 7;
+			count++;
+		}
+		output.writeByte((int)value);
+		return count;
+	}
+
+	/**
+	 * Write an unsigned value to the buffer.
+	 */
+	public static void write(ByteBuffer buffer, long value) {
+		while((value & ~0x7FL) != 0) {
+			buffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+	}
+
+	/**
+	 * Get the number of bytes that the value takes.
+	 */
+	public static int size(long value) {
+		int count = 1;
+
+		while((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			count++;
+		}
+		return count;
+	}
+
+	public static long readLong(ByteBuffer buffer) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			if(shift > 63) {
+				throw new BufferUnderflowException();
+			}
+			b = buffer.get();
+			value |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+
+		return value;
+	}
+
+	/**
+	 * Read a value that must fit in the non negative int.
+	 */
+	public static int readInt(ByteBuffer buffer) {
+		long value = readLong(buffer);
+
+		if(value < 0 || value > Integer.MAX_VALUE) {
+			throw new BufferUnderflowException();
+		}
+		return (int)value;
+	}
+
+	public static long readLong(DataInput input) throws IOException {
+		long value = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			if(shift > 63) {
+				throw new IOException("Too long varint.");
+			}
+			b = input.readByte();
+			value |= (long)(b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+
+		return value;
+	}
+
+	public static int readInt(DataInput input) throws IOException {
+		long value = readLong(input);
+
+		if(value < 0 || value > Integer.MAX_VALUE) {
+			throw new IOException("The varint is too large.");
+		}
+		return (int)value;
+	}
+
+	/**
+	 * Map the signed values so that the values near zero are small.
+	 */
+	public static long encodeSigned(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	public static long decodeSigned(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -17,41 +17,246 @@
 package org.quicktionary.backend.database;
 
 import java.util.TreeMap;
+import java.util.SortedMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.Iterator;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 
 import org.quicktionary.backend.WordEntry;
+import org.quicktionary.backend.TextNode;
 import org.quicktionary.backend.Configs;
 
 /**
  * The database class for the quicktionary.
+ *
+ * The words are looked up from two places. The index file is only
+ * read, and the map contains the words that are changed after the
+ * index was written. The sync only appends the changes to the log.
+ * The checkpoints write the changed words to a new segment of the
+ * index, and the segments are merged when there are many of them.
+ * When most of the data store is taken by the replaced pages, the
+ * pages that are still used are copied to a new data store.
+ *
+ * The lookups and the changes don't take any locks. The map is
+ * a concurrent skip list and the index is replaced only as a whole,
+ * so a search isn't blocked by an import that runs at the same time.
+ * Every search has its own SearchCursor.
+ *
+ * The words of the index are also in a Bloom filter, so looking up
+ * a word that doesn't exist usually doesn't read the index. The
+ * filter is written with the checkpoints.
+ *
+ * The changes are synced in the background when there are enough
+ * of them, so the caller doesn't have to call sync regularly.
  */
 public class WordDatabase {
+	private final static int DEFAULT_FLUSH_COUNT = 10000;
+	private final static long DEFAULT_FLUSH_BYTES = 64 * 1024 * 1024;
+	private final static long DEFAULT_FLUSH_INTERVAL = 10 * 60 * 1000;
+	private final static int MIN_FILTER_CAPACITY = 64 * 1024;
+
 	private DataStoreIO io;
-	private TreeMap<String, WordEntryIO> map;
+	private FlushScheduler flusher;
+	private volatile IndexTable table;
+	private volatile BloomFilter filter;
+	private ConcurrentSkipListMap<String, WordEntryIO> map;
+	private Set<String> changedWords;
 
-	private String searchWord;
-	private Map.Entry<String, WordEntryIO> currentEntry;
-	final private Object lock;
+	private volatile SearchCursor searchCursor;
+	final private Object syncLock;
 
 	/**
 	 * Create the database.
 	 */
 	public WordDatabase(String filename) {
-		lock = this;
+		syncLock = new Object();
+		searchCursor = null;
 		io = null;
+		table = null;
+		flusher = null;
 
 		if(filename != null) {
 			io = new DataStoreIO(new File(filename));
-			map = this.io.getIndex();
+			table = this.io.getIndex();
 		}
 
-		if(map == null) {
-			map = new TreeMap<String, WordEntryIO>();
+		if(table == null) {
+			table = IndexTable.empty();
+		}
+		map = new ConcurrentSkipListMap<String, WordEntryIO>();
+		changedWords = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		/* the words are looked up from the index until the
+		 * missing filter is built in the background */
+		if(io != null) {
+			filter = io.readFilter();
+			if(filter == null && isEmpty()) {
+				rebuildFilter();
+			} else if(filter == null) {
+				startFilterBuilder();
+			}
+		}
+
+		/* the words that were synced after the last checkpoint */
+		if(io != null) {
+			map.putAll(io.getRecoveredChanges());
+			flusher = new FlushScheduler(this, DEFAULT_FLUSH_COUNT, DEFAULT_FLUSH_BYTES,
+			                             DEFAULT_FLUSH_INTERVAL);
 		}
 	}
 	public WordDatabase() {
 		this(Configs.getOptionString("database"));
+		setMappedReads(Configs.getOptionBoolean("database.mappedReads"));
+		setMappedIndex(Configs.getOptionBoolean("database.mappedIndex"));
+		setPerfectHash(Configs.getOptionBoolean("database.perfectHash"));
+		setCompression(Configs.getOptionBoolean("database.compression"));
+		setColdSource(Configs.getOptionBoolean("database.coldSource"));
+		setSharedSubtrees(Configs.getOptionBoolean("database.sharedSubtrees"));
+		setPageCacheSize(Configs.getOptionInt("database.pageCacheSize") * 1024L * 1024L);
+		setRecordCacheSize(Configs.getOptionInt("database.recordCacheSize") * 1024L * 1024L);
+		setFlushLimits(Configs.getOptionInt("database.flushCount"),
+		               Configs.getOptionInt("database.flushSize") * 1024L * 1024L,
+		               Configs.getOptionInt("database.flushInterval") * 1000L);
+	}
+
+	/**
+	 * Set when the changes are synced in the background.
+	 * @param count The number of the changed words
+	 * @param bytes The estimated size of the changed words
+	 * @param interval The time in milliseconds that a change may wait
+	 */
+	public void setFlushLimits(int count, long bytes, long interval) {
+		if(io == null) {
+			return;
+		}
+		flusher.close();
+		flusher = new FlushScheduler(this, count, bytes, interval);
+	}
+
+	/**
+	 * Read the pages straight from memory mapped data store
+	 * instead of seeking the file for each page.
+	 * @param enabled True if the memory mapping should be used
+	 */
+	public void setMappedReads(boolean enabled) {
+		if(io != null) {
+			io.setMappedReads(enabled);
+		}
+	}
+
+	/**
+	 * Compress the pages when they are written to the data store.
+	 * @param enabled True if the pages should be compressed
+	 */
+	public void setCompression(boolean enabled) {
+		if(io != null) {
+			io.setCompression(enabled);
+		}
+	}
+
+	/**
+	 * Keep the sources of the pages in a separate file. The source
+	 * is then read only when WordEntry.getSource is called.
+	 * @param enabled True if the sources should be kept apart
+	 */
+	public void setColdSource(boolean enabled) {
+		if(io != null) {
+			io.setColdSource(enabled);
+		}
+	}
+
+	/**
+	 * Keep the large trees that are the same in many pages, like the
+	 * template blocks, in a separate file only once. The pages refer
+	 * to the trees, and the trees are decoded to every page again.
+	 * @param enabled True if the trees should be shared
+	 */
+	public void setSharedSubtrees(boolean enabled) {
+		if(io != null) {
+			io.setSharedSubtrees(enabled);
+		}
+	}
+
+	/**
+	 * Set how much memory the pages that were read last may take.
+	 * @param size The estimated size of the cached pages in bytes
+	 */
+	public void setPageCacheSize(long size) {
+		if(io != null) {
+			io.setPageCacheSize(size);
+		}
+	}
+
+	/**
+	 * Get the cache of the pages that were read last. It tells how
+	 * many times the pages were found from the cache.
+	 * @return The cache or null if the database is only in the memory
+	 */
+	public PageCache getPageCache() {
+		return (io != null) ? io.getPageCache() : null;
+	}
+
+	/**
+	 * Set how much memory outside of the Java heap the records that
+	 * were read last may take. The records are kept decompressed,
+	 * so a page that isn't in the page cache only has to be decoded.
+	 * @param size The size of the cache in bytes
+	 */
+	public void setRecordCacheSize(long size) {
+		if(io != null) {
+			io.setRecordCacheSize(size);
+		}
+	}
+
+	/**
+	 * Get the cache of the records that were read last.
+	 * @return The cache or null if the database is only in the memory
+	 */
+	public RecordCache getRecordCache() {
+		return (io != null) ? io.getRecordCache() : null;
+	}
+
+	/**
+	 * Keep the index in the memory instead of memory mapping
+	 * the index file.
+	 * @param enabled True if the index file should be mapped
+	 */
+	public void setMappedIndex(boolean enabled) {
+		IndexTable newTable;
+
+		if(io == null) {
+			return;
+		}
+		synchronized(syncLock) {
+			newTable = io.setMappedIndex(enabled);
+			if(newTable != null) {
+				table.close();
+				table = newTable;
+			}
+		}
+	}
+
+	/**
+	 * Write a perfect hash of the words with the index, so that
+	 * a word is found without searching the index. The prefix
+	 * searches still use the sorted index.
+	 * @param enabled True if the perfect hash should be written
+	 */
+	public void setPerfectHash(boolean enabled) {
+		if(io != null) {
+			io.setPerfectHash(enabled);
+		}
 	}
 
 	/**
@@ -60,26 +265,105 @@ public class WordDatabase {
 	 * @return A WordEntry for the word
 	 */
 	public WordEntry newWord(String word) {
-		WordEntry entry = new WordEntry(word);
-		synchronized(lock) {
-			WordEntryIO entryIO;
-			if(io == null) {
-				entryIO = new WordEntryIO(entry, 0);
-			} else {
-				entryIO = io.createNewEntry(entry);
-			}
-			map.put(word, entryIO);
+		return newWord(word, null, null);
+	}
+
+	/**
+	 * Add new word with its page to the database. The page may
+	 * be written right away by the background sync, so the words
+	 * that have their page ready should be added with this.
+	 *
+	 * @param word The word that we want to create
+	 * @param source The source of the page
+	 * @param content The page
+	 * @return A WordEntry for the word
+	 */
+	public WordEntry newWord(String word, String source, TextNode content) {
+		WordEntry entry = new WordEntry(word, source, content);
+		WordEntryIO entryIO;
+
+		if(io == null) {
+			entryIO = new WordEntryIO(entry, 0);
+		} else {
+			entryIO = io.createNewEntry(entry);
+		}
+		map.put(word, entryIO);
+		changedWords.add(word);
+
+		if(flusher != null) {
+			flusher.changed(entry.getIO().estimateSize());
 		}
 		return entry;
 	}
 
+	/**
+	 * Start adding many words at once. The words are written straight
+	 * to the data store and the index is written only when the
+	 * BulkLoader is finished, so this is much faster than newWord
+	 * when the database is filled from a dump.
+	 *
+	 * @return The loader that takes the words
+	 */
+	public BulkLoader bulkLoad() {
+		/* the earlier changes go to the index first,
+		 * so the loaded words replace them */
+		checkpoint();
+		return new BulkLoader(this, io, (io != null) ? io.getDirectory() : null);
+	}
+
+	/**
+	 * Replace the index with the one that has also the loaded words.
+	 * @param words The loaded words in the sorted order
+	 */
+	protected void finishBulkLoad(Iterator<Map.Entry<String, WordEntryIO>> words) throws IOException {
+		IndexTable newTable, oldTable;
+
+		synchronized(syncLock) {
+			oldTable = table;
+			newTable = io.writeBulkIndex(words);
+			table = newTable;
+			oldTable.close();
+
+			rebuildFilter();
+			io.writeFilter(filter);
+		}
+	}
+
+	/**
+	 * Check if the database doesn't have any words.
+	 */
+	public boolean isEmpty() {
+		IndexTable.Cursor cursor;
+
+		for(WordEntryIO entry : map.values()) {
+			if(entry != WordEntryIO.REMOVED) {
+				return false;
+			}
+		}
+
+		/* the words of the index may be removed in the map */
+		for(cursor = table.seek(""); cursor.isValid(); cursor.next()) {
+			if(!map.containsKey(cursor.getWord())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Remove a word from the database.
 	 * @param word The word that we want to remove
 	 */
 	public void removeWord(String word) {
-		synchronized(lock) {
-			map.remove(word);
+		/* the word may be in the index or in the log */
+		if(map.containsKey(word) || findIndexed(table, word) != null) {
+			map.put(word, WordEntryIO.REMOVED);
+			changedWords.add(word);
+
+			/* only the word is kept for the removal */
+			if(flusher != null) {
+				flusher.changed(64 + 2 * word.length());
+			}
 		}
 	}
 
@@ -92,7 +376,12 @@ public class WordDatabase {
 		if(io == null) {
 			return;
 		}
+		/* the entry must be marked before it is put to the map,
+		 * so that a checkpoint doesn't think it was written */
 		io.markAsChanged(entry.getIO());
+		map.put(entry.getWord(), entry.getIO());
+		changedWords.add(entry.getWord());
+		flusher.changed(entry.getIO().estimateSize());
 	}
 
 	/**
@@ -101,11 +390,29 @@ public class WordDatabase {
 	 * @return True if the word is already in database
 	 */
 	public boolean containsWordEntry(String word) {
-		return map.containsKey(word);
+		WordEntryIO entry = map.get(word);
+		if(entry != null) {
+			return entry != WordEntryIO.REMOVED;
+		}
+		return findIndexed(table, word) != null;
 	}
 
 	/**
-	 * Get the data for the word.
+	 * Find the word from the index, unless the filter
+	 * tells that the index doesn't have it.
+	 */
+	private IndexTable.Cursor findIndexed(IndexTable index, String word) {
+		BloomFilter current = filter;
+
+		if(current != null && !current.mightContain(word)) {
+			return null;
+		}
+		return index.find(word);
+	}
+
+	/**
+	 * Get the data for the word. The page is read to the page cache,
+	 * where the WordEntry takes it when it is asked.
 	 * @param wordEntry The entry that we want to be filled.
 	 */
 	public void fetchPage(WordEntry wordEntry) {
@@ -113,8 +420,31 @@ public class WordDatabase {
 			return;
 		}
 		if(!wordEntry.isLoaded() && wordEntry.isStorable()) {
-			io.fetchWordEntry(wordEntry.getIO());
+			wordEntry.getIO().fetchContent();
+		}
+	}
+
+	/**
+	 * Read the pages of many words at once, for example the pages
+	 * near the opened page or all pages to be exported. The records
+	 * are read in the order of their addresses on the worker threads,
+	 * and the pages are put to the page cache.
+	 * @param wordEntries The entries whose pages are wanted
+	 * @return The contents of the pages that could be read
+	 */
+	public Future<Map<WordEntry, TextNode>> fetchPages(Collection<WordEntry> wordEntries) {
+		List<WordEntryIO> entries = new ArrayList<WordEntryIO>();
+
+		for(WordEntry wordEntry : wordEntries) {
+			if(!wordEntry.isLoaded() && wordEntry.isStorable() && wordEntry.getIO() != null) {
+				entries.add(wordEntry.getIO());
+			}
+		}
+		if(io == null) {
+			return new PageBatch(Collections.<WordEntry, TextNode>emptyMap(),
+			                     Collections.<Future<Map<WordEntry, TextNode>>>emptyList());
 		}
+		return io.fetchPages(entries);
 	}
 
 	/**
@@ -123,15 +453,54 @@ public class WordDatabase {
 	 * @return The WordEntry for the word
 	 */
 	public WordEntry fetchWordEntry(String word) {
+		IndexTable.Cursor cursor;
+		IndexTable current;
 		WordEntryIO entry;
 
-		synchronized(lock) {
-			entry = map.get(word);
-			if(entry == null) {
-				return new WordEntry(word, null, null, false);
-			}
+		/* the checkpoint replaces the index before it removes the
+		 * words from the map, so a word is always found in one of them */
+		entry = map.get(word);
+		if(entry != null && entry != WordEntryIO.REMOVED) {
+			return entry.data;
+		}
+
+		current = table;
+		cursor = (entry == null) ? findIndexed(current, word) : null;
+		if(cursor == null) {
+			return new WordEntry(word, null, null, false);
+		}
+		return createWordEntry(current, cursor);
+	}
+
+	/**
+	 * Create a WordEntry for a word in the index file. The entries
+	 * aren't stored, so only the words that are used take memory.
+	 * @param source The index that has the cursor
+	 * @param cursor The position of the word
+	 */
+	protected WordEntry createWordEntry(IndexTable source, IndexTable.Cursor cursor) {
+		WordEntry entry;
+
+		entry = new WordEntry(cursor.getWord());
+		entry.setDescription(cursor.getDescription());
+		if(io == null) {
+			new WordEntryIO(entry, cursor.getAddress());
+		} else {
+			io.openEntry(entry, cursor.getAddress(), source);
 		}
-		return entry.data;
+
+		return entry;
+	}
+
+	/**
+	 * Start a prefix search. The search has its own position, so
+	 * it doesn't affect the other searches.
+	 *
+	 * @param word The prefix of wanted keys
+	 * @return The cursor that gives the words
+	 */
+	public SearchCursor search(String word) {
+		return new SearchCursor(this, word);
 	}
 
 	/**
@@ -139,13 +508,13 @@ public class WordDatabase {
 	 * itself doesn't give the items. You have to call the fetchResults
 	 * method to get the items.
 	 *
+	 * There is only one such search for the database, so use
+	 * the search method when there may be many searches.
+	 *
 	 * @param word The prefix of wanted keys
 	 */
 	public void requestResults(String word) {
-		synchronized(lock) {
-			searchWord = word;
-			currentEntry = map.ceilingEntry(word);
-		}
+		searchCursor = search(word);
 	}
 
 	/**
@@ -156,31 +525,240 @@ public class WordDatabase {
 	 * @return The number of items found
 	 */
 	public int fetchResults(WordEntry[] entries, int count) {
-		int i;
+		SearchCursor cursor = searchCursor;
 
-		synchronized(lock) {
-			for(i = 0; i < count && currentEntry != null; i++) {
-				if(!currentEntry.getKey().startsWith(searchWord)) break;
+		if(cursor == null) {
+			if(count > 0) {
+				entries[0] = null;
+			}
+			return 0;
+		}
+		return cursor.fetch(entries, count);
+	}
+
+	protected IndexTable getTable() {
+		return table;
+	}
+
+	protected ConcurrentNavigableMap<String, WordEntryIO> getMap() {
+		return map;
+	}
+
+	protected static byte[] getBytes(String word) {
+		try {
+			return word.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException exception) {
+			throw new Error("Your runtime doesn't support UTF-8.");
+		}
+	}
+
+	/**
+	 * Write the WordEntry changes to the file. Only the changed words
+	 * are appended to the log, unless the log has grown too large.
+	 */
+	public void sync() {
+		SortedMap<String, WordEntryIO> changes;
+
+		if(io == null) {
+			return;
+		}
+
+		/* the syncs must write the log in the same order as they
+		 * take the changes, but the changes may be made while
+		 * the earlier changes are written */
+		synchronized(syncLock) {
+			changes = new TreeMap<String, WordEntryIO>();
+			for(String word : changedWords) {
+				WordEntryIO entry;
+
+				/* the word is taken before its entry, so a change
+				 * made after this goes to the next sync */
+				changedWords.remove(word);
+				entry = map.get(word);
+				if(entry != null) {
+					changes.put(word, entry);
+				}
+			}
+
+			if(!io.logChanges(changes)) {
+				changedWords.addAll(changes.keySet());
+				return;
+			}
 
-				entries[i] = currentEntry.getValue().data;
-				currentEntry = map.higherEntry(currentEntry.getKey());
+			if(io.needsCheckpoint()) {
+				checkpoint();
 			}
 		}
+	}
 
-		/* append null terminator to the list */
-		if(i < count) {
-			entries[i] = null;
+	/**
+	 * Write all the changes to a new segment of the index and empty
+	 * the log. The segments are merged when there are many of them,
+	 * and the data store is compacted when most of it is unused.
+	 */
+	public void checkpoint() {
+		if(io == null) {
+			return;
 		}
 
-		return i;
+		synchronized(syncLock) {
+			if(!writeCheckpoint()) {
+				return;
+			}
+			if(io.needsCompaction()) {
+				replaceDataStore();
+			}
+			io.writeFilter(filter);
+		}
 	}
 
 	/**
-	 * Write the WordEntry changes to the file.
+	 * Copy the pages that are still used to a new data store, so that
+	 * the space of the changed and the removed pages is freed. The
+	 * searches and the reads continue while the pages are copied,
+	 * only the sync waits.
 	 */
-	public void sync() {
-		if(io != null) {
-			io.syncFile(map);
+	public void compactDataStore() {
+		if(io == null) {
+			return;
+		}
+
+		synchronized(syncLock) {
+			writeCheckpoint();
+			replaceDataStore();
+			io.writeFilter(filter);
+		}
+	}
+
+	/**
+	 * @return True if the checkpoint was written
+	 */
+	private boolean writeCheckpoint() {
+		SortedMap<String, WordEntryIO> changes;
+		IndexTable newTable, oldTable;
+
+		/* the words that are changed after this stay in the map */
+		changes = new TreeMap<String, WordEntryIO>(map);
+
+		/* the words are looked up from the index only if they are
+		 * in the filter, so they are added before they leave the map */
+		if(filter != null) {
+			for(Map.Entry<String, WordEntryIO> change : changes.entrySet()) {
+				if(change.getValue() != WordEntryIO.REMOVED) {
+					filter.add(change.getKey());
+				}
+			}
+			if(filter.isFull()) {
+				rebuildFilter();
+			}
+		}
+
+		oldTable = table;
+		newTable = io.checkpoint(changes);
+		if(newTable == null) {
+			return false;
+		}
+		table = newTable;
+		oldTable.close();
+
+		/* the words that were written are now in the index file */
+		for(Map.Entry<String, WordEntryIO> change : changes.entrySet()) {
+			WordEntryIO entry = change.getValue();
+
+			if(entry == WordEntryIO.REMOVED || !entry.isModified()) {
+				map.remove(change.getKey(), entry);
+			}
+		}
+
+		/* the lookups check every segment, so they are merged
+		 * before there are too many of them */
+		newTable = io.compact();
+		if(newTable != null) {
+			table = newTable;
+		}
+		return true;
+	}
+
+	/**
+	 * Build the filter again from the words of the index and the map.
+	 * There is room for twice as many words, so that the filter isn't
+	 * rebuilt often.
+	 */
+	private void rebuildFilter() {
+		filter = buildFilter(table);
+	}
+
+	private BloomFilter buildFilter(IndexTable index) {
+		BloomFilter newFilter;
+		IndexTable.Cursor cursor;
+		long size;
+
+		size = (long)index.entryCount() + map.size();
+		newFilter = new BloomFilter((int)Math.max(MIN_FILTER_CAPACITY, Math.min(2 * size, Integer.MAX_VALUE / 16)));
+		for(cursor = index.seek(""); cursor.isValid(); cursor.next()) {
+			newFilter.add(cursor.getWord());
+		}
+		for(Map.Entry<String, WordEntryIO> change : map.entrySet()) {
+			if(change.getValue() != WordEntryIO.REMOVED) {
+				newFilter.add(change.getKey());
+			}
+		}
+		return newFilter;
+	}
+
+	/**
+	 * Build the filter that is missing or out of date without making
+	 * the startup wait for it. The filter is taken into use only if
+	 * the index wasn't changed while it was built.
+	 */
+	private void startFilterBuilder() {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				while(true) {
+					IndexTable current = table;
+					BloomFilter newFilter;
+
+					try {
+						newFilter = buildFilter(current);
+					} catch(RuntimeException exception) {
+						/* the index was closed by a checkpoint */
+						newFilter = null;
+					}
+
+					synchronized(syncLock) {
+						if(filter != null) {
+							return;
+						}
+						if(newFilter != null && current == table) {
+							filter = newFilter;
+							io.writeFilter(filter);
+							return;
+						}
+					}
+				}
+			}
+		}, "Database filter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void replaceDataStore() {
+		IndexTable newTable;
+
+		/* only the words of the index are copied, so the words
+		 * that are only in the map are written again */
+		for(Map.Entry<String, WordEntryIO> change : map.entrySet()) {
+			WordEntryIO entry = change.getValue();
+
+			if(entry != WordEntryIO.REMOVED && !entry.isModified()) {
+				io.markAsChanged(entry);
+				changedWords.add(change.getKey());
+			}
+		}
+
+		newTable = io.compactDataStore();
+		if(newTable != null) {
+			table = newTable;
 		}
 	}
 
@@ -188,6 +766,9 @@ public class WordDatabase {
 	 * Close the database safely.
 	 */
 	public void close() {
-		sync();
+		if(flusher != null) {
+			flusher.close();
+		}
+		checkpoint();
 	}
 }
@@ -16,25 +16,51 @@
  */
 package org.quicktionary.backend.database;
 
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.io.DataOutputStream;
-import java.io.DataInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
 
 import org.quicktionary.backend.WordEntry;
 import org.quicktionary.backend.TextNode;
 
 public class WordEntryIO {
+	/**
+	 * The marker for the words that are removed, but still
+	 * exist in the index file.
+	 */
+	protected final static WordEntryIO REMOVED = new WordEntryIO(new WordEntry(null, null, null, false), -1);
+
 	protected long address;
-	protected boolean modified;
+	protected volatile boolean modified;
 	protected WordEntry data;
 
+	/* the data store that has the record of the word and the
+	 * generation of the data store that the address points to */
+	protected DataStoreIO store;
+	protected int generation;
+	protected long sourceAddress;
+
+	/* the count of the changes, so that a change made while the
+	 * record is written isn't lost when the write finishes */
+	protected int changes;
+
+	/* the record that is in the write buffer, the entry
+	 * gets these only after the record is in the file */
+	protected long bufferedAddress;
+	protected int bufferedChanges;
+
+	/* the cold source that the changed word still has, it
+	 * is read only if somebody asks for it */
+	protected volatile long keptSource;
+	private boolean sourceReplaced;
+
 	protected WordEntryIO(WordEntry entry, long address) {
 		this.data = entry;
 		this.address = address;
-		setModified(false);
+		this.store = null;
+		this.sourceAddress = -1;
+		this.keptSource = -1;
+		this.modified = false;
 
 		if(entry != null) {
 			entry.setIO(this);
@@ -45,95 +71,212 @@ public class WordEntryIO {
 		return modified;
 	}
 
+	/**
+	 * Count a change of the page. The WordEntry calls this
+	 * when its page or source is replaced.
+	 */
+	public synchronized void changed() {
+		changes++;
+	}
+
+	/**
+	 * Count a change of the source. The WordEntry calls this
+	 * when its source is replaced.
+	 */
+	public synchronized void sourceChanged() {
+		changes++;
+		sourceReplaced = true;
+		keptSource = -1;
+	}
+
 	protected void setModified(boolean modified) {
+		PageCache.Page page;
+
+		/* the page that is only in the cache has to be kept,
+		 * because the record will be written again */
+		if(modified && !this.modified) {
+			page = fetchPage();
+			data.setContent(data.getContent());
+
+			/* the cold source isn't read just to write its address again */
+			if(!sourceReplaced && page != null && page.getSource() == null && page.getSourceAddress() >= 0) {
+				keptSource = page.getSourceAddress();
+			} else {
+				data.addSource(data.getSource());
+			}
+		}
+		if(!modified) {
+			keptSource = -1;
+			sourceReplaced = false;
+		}
 		this.modified = modified;
 		this.data.setModified(modified);
 	}
 
-	protected void setData(byte[] buffer) {
-		DataInputStream input;
+	/**
+	 * Estimate how many bytes of memory the changed word takes.
+	 * The parsed page takes about as much as its source.
+	 */
+	protected long estimateSize() {
+		String source = (keptSource < 0) ? data.getSource() : null;
+		long size = 64 + 2 * data.getWord().length();
+
+		if(source != null) {
+			size += 4L * source.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Check if the page of the word is in the page cache.
+	 */
+	public boolean isCached() {
+		return store != null && !modified && store.isCached(this);
+	}
+
+	/**
+	 * Get the page of the word from the page cache or from the
+	 * data store. The WordEntry calls this when it doesn't have
+	 * the changed page itself.
+	 * @return The page or null if the word doesn't have it
+	 */
+	public TextNode fetchContent() {
+		PageCache.Page page = fetchPage();
+
+		return (page != null) ? page.getContent() : null;
+	}
+
+	/**
+	 * Get the source of the word. The source is read from the source
+	 * store, if it isn't in the record.
+	 * @return The source or null if the word doesn't have it
+	 */
+	public String fetchSource() {
+		PageCache.Page page;
+		long kept = keptSource;
+
+		if(kept >= 0 && modified) {
+			return store.fetchSource(kept);
+		}
+
+		page = fetchPage();
+		if(page == null) {
+			return null;
+		}
+		if(page.getSource() != null || page.getSourceAddress() < 0) {
+			return page.getSource();
+		}
+		return store.fetchSource(page.getSourceAddress());
+	}
+
+	private PageCache.Page fetchPage() {
+		if(store == null || modified) {
+			return null;
+		}
+		return store.fetchPage(this);
+	}
+
+	/**
+	 * Decode the record of the word. The buffer may be
+	 * a view to a memory mapped data store.
+	 * @param buffer The record without the length prefix
+	 * @param inlineSource False if the record has only the address of the source
+	 * @return The decoded page
+	 */
+	protected PageCache.Page readPage(ByteBuffer buffer, boolean inlineSource) {
 		String word, source;
 		TextNode root;
-		int length;
+		long sourceAddress;
+		int length, recordSize;
 
 		word = source = null;
 		root = null;
+		sourceAddress = -1;
+		recordSize = buffer.remaining();
 
 		try {
-			input = new DataInputStream(new ByteArrayInputStream(buffer));
-
 			/* read the word */
-			length = input.readInt();
-			buffer = new byte[length];
-			input.readFully(buffer);
-			word = new String(buffer, "UTF-8");
+			length = buffer.getInt();
+			word = TextNodeIO.decodeString(buffer, length);
 
-			/* read the source */
-			length = input.readInt();
-			buffer = new byte[length];
-			input.readFully(buffer);
-			source = new String(buffer, "UTF-8");
+			/* read the source or its address */
+			if(inlineSource) {
+				length = buffer.getInt();
+				source = TextNodeIO.decodeString(buffer, length);
+			} else {
+				sourceAddress = buffer.getLong();
+			}
 
 			/* read the content of the page */
-			length = input.readInt();
+			length = buffer.getInt();
 			if(length != 0) {
-				buffer = new byte[length];
-				input.readFully(buffer);
-				root = TextNodeIO.decodeData(buffer);
+				ByteBuffer content = buffer.slice();
+				content.limit(length);
+				root = (store != null) ?
+				       TextNodeIO.decodeData(content, store.getSubtrees(), store.getStrings()) :
+				       TextNodeIO.decodeData(content);
 			}
 
 		} catch(UnsupportedEncodingException exception) {
-		} catch(IOException exception) {
+		} catch(BufferUnderflowException exception) {
+		} catch(IllegalArgumentException exception) {
 		}
 
 		if(!this.data.getWord().equals(word)) {
 			throw new Error("The word in the file doesn't match the WordEntry");
 		}
-		this.data.addSource(source);
-		this.data.setContent(root);
+		return new PageCache.Page(root, source, sourceAddress, recordSize);
 	}
 
 	protected byte[] getData() {
-		ByteArrayOutputStream stream;
-		DataOutputStream output;
-		String word, source;
-
-		word = data.getWord();
-		source = data.getSource();
+		return getData(true);
+	}
 
-		try {
-			byte[] buffer;
+	/**
+	 * Encode the WordEntry to a record.
+	 * @param inlineSource False if only the address of the source is written
+	 * @return The record without the length prefix
+	 */
+	protected byte[] getData(boolean inlineSource) {
+		RecordEncoder encoder = new RecordEncoder(1024, false);
 
-			stream = new ByteArrayOutputStream();
-			output = new DataOutputStream(stream);
+		encode(encoder, inlineSource, null);
+		return encoder.toByteArray();
+	}
 
-			/* write the word */
-			if(word != null) {
-				buffer = word.getBytes("UTF-8");
-				output.writeInt(buffer.length);
-				output.write(buffer);
-			} else {
-				output.writeInt(0);
-			}
+	/**
+	 * Encode the record straight to the buffer.
+	 * @param encoder The buffer of the record without the length prefix
+	 * @param inlineSource False if only the address of the source is written
+	 * @param subtrees The store where the large trees are shared or null
+	 */
+	protected void encode(RecordEncoder encoder, boolean inlineSource, SubtreeStore subtrees) {
+		String word, source;
+		int lengthPosition;
 
-			/* write the source */
-			if(source != null) {
-				buffer = source.getBytes("UTF-8");
-				output.writeInt(buffer.length);
-				output.write(buffer);
-			} else {
-				output.writeInt(0);
-			}
+		word = data.getWord();
+		source = inlineSource ? data.getSource() : null;
 
-			/* write the content of the page */
-			buffer = TextNodeIO.encodeData(data.getContent());
-			output.writeInt(buffer.length);
-			output.write(buffer);
+		/* write the word */
+		if(word != null) {
+			encoder.putIntString(word);
+		} else {
+			encoder.putInt(0);
+		}
 
-			return stream.toByteArray();
-		} catch(UnsupportedEncodingException exception) {
-		} catch(IOException exception) {
+		/* write the source */
+		if(!inlineSource) {
+			encoder.putLong(sourceAddress);
+		} else if(source != null) {
+			encoder.putIntString(source);
+		} else {
+			encoder.putInt(0);
 		}
-		return new byte[0];
+
+		/* write the content of the page, its length is known afterwards */
+		lengthPosition = encoder.position();
+		encoder.putInt(0);
+		TextNodeIO.encodeData(encoder, data.getContent(), subtrees);
+		encoder.putInt(lengthPosition, encoder.position() - lengthPosition - 4);
 	}
 }
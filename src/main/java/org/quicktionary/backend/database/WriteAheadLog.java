@@ -0,0 +1,255 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.quicktionary.backend.WordEntry;
+
+/**
+ * The log of the index changes that are not yet in the index file.
+ *
+ * Every sync appends one frame that contains all the words that were
+ * changed, and the file is flushed to the disk once per frame. The
+ * frame has the length and the checksum of its content, so a frame
+ * that was only partially written is dropped when the log is read.
+ * The log is emptied when the index file is rewritten.
+ */
+class WriteAheadLog {
+	private final static byte[] LOG_HEADER_SIGNATURE = {'W', 'A', 'L', 0};
+
+	private final static int OPERATION_PUT = 1;
+	private final static int OPERATION_REMOVE = 2;
+
+	private File file;
+	private RandomAccessFile log;
+
+	public WriteAheadLog(File file) throws IOException {
+		this.file = file;
+		this.log = new RandomAccessFile(file, "rw");
+	}
+
+	/**
+	 * Get the log file that belongs to the data store.
+	 */
+	public static File getLogFile(File dataStoreFile) {
+		return new File(dataStoreFile.getPath() + ".wal");
+	}
+
+	/**
+	 * Get the size of the log file.
+	 */
+	public long size() throws IOException {
+		return log.length();
+	}
+
+	/**
+	 * Check if the log doesn't have any frames.
+	 */
+	public boolean isEmpty() throws IOException {
+		return log.length() <= LOG_HEADER_SIGNATURE.length;
+	}
+
+	/**
+	 * Remove all frames from the log.
+	 */
+	public void reset() throws IOException {
+		log.setLength(0);
+		log.write(LOG_HEADER_SIGNATURE);
+		log.getChannel().force(true);
+	}
+
+	/**
+	 * Read the changes from the log. The broken frame at the
+	 * end of the file is removed.
+	 *
+	 * @param storeLength The length of the data store
+	 * @return The changes in the sorted order
+	 */
+	public SortedMap<String, WordEntryIO> replay(long storeLength) throws IOException {
+		SortedMap<String, WordEntryIO> changes = new TreeMap<String, WordEntryIO>();
+		byte[] signature = new byte[LOG_HEADER_SIGNATURE.length];
+		long position;
+
+		if(log.length() < signature.length) {
+			reset();
+			return changes;
+		}
+
+		log.seek(0);
+		log.readFully(signature);
+		if(!Arrays.equals(LOG_HEADER_SIGNATURE, signature)) {
+			throw new IOException("The file " + file + " is not log of word database");
+		}
+
+		position = signature.length;
+		while(position + 8 <= log.length()) {
+			ByteBuffer frame = readFrame(position);
+
+			if(frame == null || !readChanges(frame, changes, storeLength)) {
+				break;
+			}
+			position += 8 + frame.capacity();
+		}
+
+		if(position != log.length()) {
+			System.out.println("DB: drop broken end of the log at " + position);
+			log.setLength(position);
+		}
+		return changes;
+	}
+
+	private ByteBuffer readFrame(long position) throws IOException {
+		CRC32 checksum = new CRC32();
+		byte[] buffer;
+		int length, crc;
+
+		log.seek(position);
+		length = log.readInt();
+		crc = log.readInt();
+		if(length < 0 || position + 8 + length > log.length()) {
+			return null;
+		}
+
+		buffer = new byte[length];
+		log.readFully(buffer);
+		checksum.update(buffer, 0, length);
+		if((int)checksum.getValue() != crc) {
+			return null;
+		}
+		return ByteBuffer.wrap(buffer);
+	}
+
+	/**
+	 * Apply a frame to the changes.
+	 * @return False if the frame is corrupted
+	 */
+	private boolean readChanges(ByteBuffer frame, SortedMap<String, WordEntryIO> changes,
+	                            long storeLength) {
+		try {
+			while(frame.hasRemaining()) {
+				int operation, length;
+				String word, description;
+				WordEntry entry;
+				long address;
+
+				operation = frame.get();
+				length = VarInt.readInt(frame);
+				word = TextNodeIO.decodeString(frame, length);
+
+				if(operation == OPERATION_REMOVE) {
+					changes.put(word, WordEntryIO.REMOVED);
+					continue;
+				}
+				if(operation != OPERATION_PUT) {
+					return false;
+				}
+
+				address = VarInt.readLong(frame);
+				length = VarInt.readInt(frame) - 1;
+				description = (length >= 0) ? TextNodeIO.decodeString(frame, length) : null;
+
+				if(address >= storeLength) {
+					return false;
+				}
+
+				entry = new WordEntry(word);
+				entry.setDescription(description);
+				changes.put(word, new WordEntryIO(entry, address));
+			}
+		} catch(UnsupportedEncodingException exception) {
+			return false;
+		} catch(BufferUnderflowException exception) {
+			return false;
+		} catch(IllegalArgumentException exception) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Append the changes as one frame and flush it to the disk.
+	 * The records of the words must already be on the disk.
+	 *
+	 * @param changes The new and removed words
+	 */
+	public void append(SortedMap<String, WordEntryIO> changes) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(stream);
+		CRC32 checksum = new CRC32();
+		ByteBuffer frame;
+
+		if(changes.isEmpty()) {
+			return;
+		}
+
+		/* space for the length and the checksum */
+		output.writeLong(0);
+
+		for(Map.Entry<String, WordEntryIO> change : changes.entrySet()) {
+			WordEntryIO entry = change.getValue();
+			byte[] buffer = getBytes(change.getKey());
+
+			output.writeByte((entry == WordEntryIO.REMOVED) ? OPERATION_REMOVE : OPERATION_PUT);
+			VarInt.write(output, buffer.length);
+			output.write(buffer);
+
+			if(entry == WordEntryIO.REMOVED) {
+				continue;
+			}
+
+			VarInt.write(output, entry.address);
+			if(entry.data.getDescription() != null) {
+				buffer = getBytes(entry.data.getDescription());
+				VarInt.write(output, buffer.length + 1);
+				output.write(buffer);
+			} else {
+				VarInt.write(output, 0);
+			}
+		}
+		output.flush();
+		frame = ByteBuffer.wrap(stream.toByteArray());
+		checksum.update(frame.array(), 8, frame.capacity() - 8);
+		frame.putInt(0, frame.capacity() - 8);
+		frame.putInt(4, (int)checksum.getValue());
+
+		/* the whole frame is written and flushed at once */
+		log.seek(log.length());
+		log.write(frame.array());
+		log.getChannel().force(false);
+	}
+
+	private static byte[] getBytes(String word) {
+		try {
+			return word.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException exception) {
+			throw new Error("Your runtime doesn't support UTF-8.");
+		}
+	}
+}
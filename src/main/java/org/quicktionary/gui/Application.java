@@ -207,8 +207,10 @@ public class Application implements ActionListener {
 			"Write the name of the word and its description?",
 			JOptionPane.OK_CANCEL_OPTION);
 		if(res == JOptionPane.OK_OPTION) {
-			WordEntry entry = dictionary.newWord(nameInput.getText());
-			entry.setContent(mainWindow.generateNewPage(nameInput.getText()));
+			/* the page is given with the word, because the
+			 * word may be written right away */
+			WordEntry entry = dictionary.newWord(nameInput.getText(),
+			                                     mainWindow.generateNewPage(nameInput.getText()));
 			entry.setDescription(descInput.getText());
 		}
 		/*TODO update the search results */
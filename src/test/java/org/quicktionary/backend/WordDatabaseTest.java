@@ -1,21 +1,1001 @@
+/* Quicktionary test
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
 package org.quicktionary.backend;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
-import org.junit.AfterClass;
 import org.junit.Before;
-import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
-/**
- * FIXME: I had no time to make tests for the database file.
- */
+import org.quicktionary.backend.database.WordDatabase;
+import org.quicktionary.backend.database.PageCache;
+import org.quicktionary.backend.database.RecordCache;
+import org.quicktionary.backend.database.BulkLoader;
+import org.quicktionary.backend.database.SearchCursor;
+
 public class WordDatabaseTest {
-	
-	public WordDatabaseTest() {
+	private File directory;
+	private String filename;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("quicktionary").toFile();
+		filename = directory + File.separator + "datastore.db";
+	}
+
+	@After
+	public void tearDown() {
+		deleteDirectory(directory);
+	}
+
+	private void deleteDirectory(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for(File child : files) {
+				deleteDirectory(child);
+			}
+		}
+		file.delete();
+	}
+
+	private TextNode createPage(String title, String text) {
+		TextNode root, header, paragraph;
+
+		root = new TextNode(TextNode.ROOT_TYPE);
+		header = root.appendChild(new TextNode(TextNode.HEADER_TYPE, "1"));
+		header.setTextContent(title);
+		paragraph = root.appendChild(new TextNode(TextNode.PARAGRAPH_TYPE));
+		paragraph.appendChild(new TextNode(TextNode.PLAIN_TYPE)).setTextContent(text);
+
+		return root;
+	}
+
+	private WordDatabase createDatabase(String... words) {
+		WordDatabase db = new WordDatabase(filename);
+
+		for(String word : words) {
+			WordEntry entry = db.newWord(word);
+			entry.addSource("source of " + word);
+			entry.setContent(createPage(word, "text of " + word));
+		}
+		db.sync();
+		return db;
+	}
+
+	@Test
+	public void fetchPageAfterReopen() {
+		WordDatabase db;
+		WordEntry entry;
+
+		createDatabase("cat", "dog");
+
+		db = new WordDatabase(filename);
+		entry = db.fetchWordEntry("dog");
+		db.fetchPage(entry);
+
+		assertEquals("source of dog", entry.getSource());
+		assertEquals(createPage("dog", "text of dog"), entry.getContent());
+	}
+
+	@Test
+	public void fetchMappedPageAfterReopen() {
+		WordDatabase db;
+		WordEntry entry;
+
+		createDatabase("cat", "dog");
+
+		db = new WordDatabase(filename);
+		db.setMappedReads(true);
+		entry = db.fetchWordEntry("cat");
+		db.fetchPage(entry);
+
+		assertEquals("source of cat", entry.getSource());
+		assertEquals(createPage("cat", "text of cat"), entry.getContent());
 	}
 
-	//@Test
-	//public void hello() {
-	//}
+	@Test
+	public void fetchMappedPageWrittenAfterMapping() {
+		WordDatabase db;
+		WordEntry entry;
+
+		db = createDatabase("cat");
+		db.setMappedReads(true);
+
+		/* the record is after the end of the mapping */
+		db.newWord("mouse", "source of mouse", createPage("mouse", "text of mouse"));
+		db.sync();
+
+		entry = db.fetchWordEntry("mouse");
+		assertFalse(entry.isLoaded());
+		db.fetchPage(entry);
+
+		assertEquals("source of mouse", entry.getSource());
+		assertEquals(createPage("mouse", "text of mouse"), entry.getContent());
+	}
+
+	private String[] search(WordDatabase db, String prefix) {
+		WordEntry[] entries = new WordEntry[10];
+		String[] words;
+		int count;
+
+		db.requestResults(prefix);
+		count = db.fetchResults(entries, entries.length);
+
+		words = new String[count];
+		for(int i = 0; i < count; i++) {
+			words[i] = entries[i].getWord();
+		}
+		return words;
+	}
+
+	@Test
+	public void searchMergesIndexAndNewWords() {
+		WordDatabase db;
+
+		db = createDatabase("cat", "catalog", "dog");
+		db.newWord("caterpillar");
+		db.newWord("car");
+
+		assertArrayEquals(new String[] {"cat", "catalog", "caterpillar"}, search(db, "cat"));
+		assertArrayEquals(new String[] {"car", "cat", "catalog", "caterpillar"}, search(db, "ca"));
+	}
+
+	@Test
+	public void searchContinuesAfterSync() {
+		WordDatabase db;
+		WordEntry[] entries = new WordEntry[1];
+
+		db = createDatabase("cat", "catalog");
+		db.newWord("caterpillar");
+
+		db.requestResults("cat");
+		assertEquals(1, db.fetchResults(entries, 1));
+		assertEquals("cat", entries[0].getWord());
+
+		db.sync();
+
+		assertEquals(1, db.fetchResults(entries, 1));
+		assertEquals("catalog", entries[0].getWord());
+		assertEquals(1, db.fetchResults(entries, 1));
+		assertEquals("caterpillar", entries[0].getWord());
+		assertEquals(0, db.fetchResults(entries, 1));
+	}
+
+	@Test
+	public void searchesHaveTheirOwnPosition() {
+		WordDatabase db;
+		SearchCursor cats, dogs;
+		WordEntry[] entries = new WordEntry[1];
+
+		db = createDatabase("cat", "catalog", "dog", "doghouse");
+		db.newWord("caterpillar");
+
+		cats = db.search("cat");
+		dogs = db.search("dog");
+
+		assertEquals(1, cats.fetch(entries, 1));
+		assertEquals("cat", entries[0].getWord());
+		assertEquals(1, dogs.fetch(entries, 1));
+		assertEquals("dog", entries[0].getWord());
+		assertEquals(1, cats.fetch(entries, 1));
+		assertEquals("catalog", entries[0].getWord());
+		assertEquals(1, dogs.fetch(entries, 1));
+		assertEquals("doghouse", entries[0].getWord());
+		assertEquals(1, cats.fetch(entries, 1));
+		assertEquals("caterpillar", entries[0].getWord());
+		assertEquals(0, dogs.fetch(entries, 1));
+		assertEquals(0, cats.fetch(entries, 1));
+	}
+
+	@Test
+	public void removedWordIsNotFoundAfterReopen() {
+		WordDatabase db;
+
+		db = createDatabase("cat", "dog");
+		db.removeWord("cat");
+		assertFalse(db.containsWordEntry("cat"));
+		db.sync();
+
+		db = new WordDatabase(filename);
+		assertFalse(db.containsWordEntry("cat"));
+		assertTrue(db.containsWordEntry("dog"));
+		assertArrayEquals(new String[] {"dog"}, search(db, ""));
+	}
+
+	@Test
+	public void findWordsFromManyBlocks() {
+		WordDatabase db;
+		String[] words = new String[100];
+
+		for(int i = 0; i < words.length; i++) {
+			words[i] = String.format("word%03d", i);
+		}
+		createDatabase(words).close();
+
+		db = new WordDatabase(filename);
+		for(String word : words) {
+			assertTrue(db.containsWordEntry(word));
+		}
+		assertFalse(db.containsWordEntry("word"));
+		assertFalse(db.containsWordEntry("word100"));
+		assertArrayEquals(new String[] {"word050", "word051", "word052", "word053",
+		                                "word054", "word055", "word056", "word057",
+		                                "word058", "word059"}, search(db, "word05"));
+	}
+
+	@Test
+	public void searchIndexInMemory() {
+		WordDatabase db;
+
+		createDatabase("cat", "catalog", "dog").close();
+
+		db = new WordDatabase(filename);
+		db.setMappedIndex(false);
+		db.newWord("caterpillar");
+
+		assertTrue(db.containsWordEntry("dog"));
+		assertArrayEquals(new String[] {"cat", "catalog", "caterpillar"}, search(db, "cat"));
+
+		db.sync();
+		assertArrayEquals(new String[] {"cat", "catalog", "caterpillar"}, search(db, "cat"));
+	}
+
+	private void writeManyPages(WordDatabase db, int count) {
+		for(int i = 0; i < count; i++) {
+			String word = String.format("word%03d", i);
+			WordEntry entry = db.newWord(word);
+			entry.addSource("==English==\n===Noun===\n{{en-noun}}\n# meaning of " + word + "\n");
+			entry.setContent(createPage(word, "text of " + word));
+		}
+		db.sync();
+	}
+
+	@Test
+	public void fetchCompressedPageAfterReopen() {
+		WordDatabase db;
+		WordEntry entry;
+
+		db = new WordDatabase(filename);
+		db.setCompression(true);
+		writeManyPages(db, 50);
+
+		for(boolean mapped : new boolean[] {false, true}) {
+			db = new WordDatabase(filename);
+			db.setMappedReads(mapped);
+			entry = db.fetchWordEntry("word042");
+			db.fetchPage(entry);
+
+			assertEquals("==English==\n===Noun===\n{{en-noun}}\n# meaning of word042\n", entry.getSource());
+			assertEquals(createPage("word042", "text of word042"), entry.getContent());
+		}
+	}
+
+	@Test
+	public void invalidLengthOfCompressedRecordIsRejected() throws IOException {
+		WordDatabase db;
+		WordEntry entry;
+		RandomAccessFile file;
+		StringBuilder source = new StringBuilder();
+		long address;
+
+		db = new WordDatabase(filename);
+		db.setCompression(true);
+		db.newWord("cat", "source of cat", createPage("cat", "text of cat"));
+		db.sync();
+
+		/* the record of the next word is appended to the end */
+		address = new File(filename).length();
+		for(int i = 0; i < 100; i++) {
+			source.append("# meaning of dog\n");
+		}
+		db.newWord("dog", source.toString(), createPage("dog", "text of dog"));
+		db.close();
+
+		/* replace the original length with one that is too large */
+		file = new RandomAccessFile(filename, "rw");
+		file.seek(address + 4);
+		assertEquals(1, file.readByte() & 1);
+		file.write(new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07});
+		file.close();
+
+		db = new WordDatabase(filename);
+		db.setCompression(true);
+		entry = db.fetchWordEntry("dog");
+		db.fetchPage(entry);
+		assertNull(entry.getContent());
+	}
+
+	@Test
+	public void compressedDataStoreIsSmaller() {
+		WordDatabase db;
+		long plainSize;
+
+		db = new WordDatabase(filename);
+		writeManyPages(db, 100);
+		plainSize = new File(filename).length();
+
+		filename = directory + File.separator + "compressed.db";
+		db = new WordDatabase(filename);
+		db.setCompression(true);
+		writeManyPages(db, 100);
+
+		assertTrue(new File(filename).length() < plainSize);
+	}
+
+	@Test
+	public void fetchColdSourceWhenAsked() {
+		WordDatabase db;
+		WordEntry entry;
+
+		db = new WordDatabase(filename);
+		db.setColdSource(true);
+		db.setCompression(true);
+		writeManyPages(db, 30);
+
+		assertTrue(new File(filename + ".src").exists());
+
+		db = new WordDatabase(filename);
+		entry = db.fetchWordEntry("word007");
+		db.fetchPage(entry);
+
+		assertEquals(createPage("word007", "text of word007"), entry.getContent());
+		assertEquals("==English==\n===Noun===\n{{en-noun}}\n# meaning of word007\n", entry.getSource());
+	}
+
+	@Test
+	public void coldSourceIsNotReadWhenPageIsChanged() {
+		WordDatabase db;
+		WordEntry entry;
+		File sourceFile, movedFile;
+
+		db = new WordDatabase(filename);
+		db.setColdSource(true);
+		db.newWord("cat", "source of cat", createPage("cat", "text of cat"));
+		db.close();
+
+		/* the source store can't be read while the page is changed */
+		sourceFile = new File(filename + ".src");
+		movedFile = new File(filename + ".moved");
+		assertTrue(sourceFile.renameTo(movedFile));
+
+		db = new WordDatabase(filename);
+		db.setColdSource(true);
+		entry = db.fetchWordEntry("cat");
+		entry.setContent(createPage("cat", "new text of cat"));
+		db.updateWord(entry);
+		db.close();
+
+		assertTrue(movedFile.renameTo(sourceFile));
+		db = new WordDatabase(filename);
+		entry = db.fetchWordEntry("cat");
+		db.fetchPage(entry);
+		assertEquals(createPage("cat", "new text of cat"), entry.getContent());
+		assertEquals("source of cat", entry.getSource());
+	}
+
+	@Test
+	public void fetchInlineSourceWithColdSource() {
+		WordDatabase db;
+		WordEntry entry;
+
+		createDatabase("cat");
+
+		db = new WordDatabase(filename);
+		db.setColdSource(true);
+		entry = db.newWord("dog");
+		entry.addSource("source of dog");
+		db.sync();
+
+		db = new WordDatabase(filename);
+		for(String word : new String[] {"cat", "dog"}) {
+			entry = db.fetchWordEntry(word);
+			db.fetchPage(entry);
+			assertEquals("source of " + word, entry.getSource());
+		}
+	}
+
+	@Test
+	public void syncedWordsAreReplayedFromLog() {
+		WordDatabase db;
+		WordEntry entry;
+
+		db = createDatabase("cat", "dog");
+		db.removeWord("cat");
+		db.sync();
+
+		db = new WordDatabase(filename);
+		assertFalse(db.containsWordEntry("cat"));
+		entry = db.fetchWordEntry("dog");
+		db.fetchPage(entry);
+		assertEquals(createPage("dog", "text of dog"), entry.getContent());
+
+		db.checkpoint();
+		assertEquals(4, new File(filename + ".wal").length());
+
+		db = new WordDatabase(filename);
+		assertArrayEquals(new String[] {"dog"}, search(db, ""));
+	}
+
+	@Test
+	public void brokenEndOfLogIsDropped() throws IOException {
+		WordDatabase db;
+		RandomAccessFile log;
+
+		createDatabase("cat");
+
+		log = new RandomAccessFile(filename + ".wal", "rw");
+		log.seek(log.length());
+		log.writeInt(100);
+		log.writeInt(0);
+		log.close();
+
+		db = new WordDatabase(filename);
+		assertTrue(db.containsWordEntry("cat"));
+
+		db.newWord("dog").setContent(createPage("dog", "text of dog"));
+		db.sync();
+
+		db = new WordDatabase(filename);
+		assertArrayEquals(new String[] {"cat", "dog"}, search(db, ""));
+	}
+
+	@Test
+	public void wordsAreWrittenAgainAfterFailedSync() {
+		WordDatabase db;
+		WordEntry entry;
+		File sourceFile;
+
+		db = new WordDatabase(filename);
+		db.setColdSource(true);
+
+		/* the source store can't be opened, so the write fails */
+		sourceFile = new File(filename + ".src");
+		assertTrue(sourceFile.mkdir());
+
+		db.newWord("cat", "source of cat", createPage("cat", "text of cat"));
+		entry = db.newWord("dog", "source of dog", createPage("dog", "text of dog"));
+		db.sync();
+
+		assertTrue(entry.getIO().isModified());
+		assertEquals(createPage("dog", "text of dog"), entry.getContent());
+
+		assertTrue(sourceFile.delete());
+		db.sync();
+		assertFalse(entry.getIO().isModified());
+
+		db = new WordDatabase(filename);
+		for(String word : new String[] {"cat", "dog"}) {
+			entry = db.fetchWordEntry(word);
+			db.fetchPage(entry);
+			assertEquals(createPage(word, "text of " + word), entry.getContent());
+			assertEquals("source of " + word, entry.getSource());
+		}
+	}
+
+	private boolean waitUntilWritten(WordEntry entry) throws InterruptedException {
+		for(int i = 0; i < 500 && entry.getIO().isModified(); i++) {
+			Thread.sleep(10);
+		}
+		return !entry.getIO().isModified();
+	}
+
+	@Test
+	public void manyChangesAreFlushedInBackground() throws InterruptedException {
+		WordDatabase db;
+		WordEntry first = null;
+
+		db = new WordDatabase(filename);
+		db.setFlushLimits(5, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		for(int i = 0; i < 12; i++) {
+			String word = String.format("word%03d", i);
+			WordEntry entry = db.newWord(word, "source of " + word, createPage(word, "text of " + word));
+			if(first == null) {
+				first = entry;
+			}
+		}
+		assertTrue(waitUntilWritten(first));
+		db.close();
+
+		db = new WordDatabase(filename);
+		assertTrue(db.containsWordEntry("word011"));
+	}
+
+	@Test
+	public void oldChangesAreFlushedInBackground() throws InterruptedException {
+		WordDatabase db;
+		WordEntry entry;
+
+		db = new WordDatabase(filename);
+		db.setFlushLimits(Integer.MAX_VALUE, Long.MAX_VALUE, 20);
+
+		entry = db.newWord("cat", "source of cat", createPage("cat", "text of cat"));
+		assertTrue(waitUntilWritten(entry));
+		db.close();
+	}
+
+	@Test
+	public void pagesAreCachedUntilCacheIsFull() {
+		WordDatabase db;
+		PageCache cache;
+		WordEntry entry;
+
+		createDatabase("cat", "dog", "mouse").close();
+
+		db = new WordDatabase(filename);
+		cache = db.getPageCache();
+
+		entry = db.fetchWordEntry("cat");
+		assertFalse(entry.isLoaded());
+		db.fetchPage(entry);
+		assertTrue(entry.isLoaded());
+		assertEquals(createPage("cat", "text of cat"), entry.getContent());
+		assertEquals(createPage("cat", "text of cat"), db.fetchWordEntry("cat").getContent());
+		assertEquals(1, cache.getMisses());
+		assertEquals(2, cache.getHits());
+
+		/* only the latest page fits to the cache */
+		db.setPageCacheSize(cache.getSize());
+		entry = db.fetchWordEntry("dog");
+		db.fetchPage(entry);
+		assertEquals(1, cache.getPageCount());
+		assertEquals(1, cache.getEvictions());
+
+		assertEquals("source of dog", entry.getSource());
+		assertEquals(createPage("cat", "text of cat"), db.fetchWordEntry("cat").getContent());
+		assertFalse(entry.isLoaded());
+		assertEquals(createPage("dog", "text of dog"), entry.getContent());
+		db.close();
+	}
+
+	@Test
+	public void evictedPagesAreDecodedFromRecordCache() {
+		WordDatabase db;
+		RecordCache records;
+		WordEntry entry;
+
+		createDatabase("cat", "dog").close();
+
+		db = new WordDatabase(filename);
+		db.setCompression(true);
+		db.setPageCacheSize(0);
+		records = db.getRecordCache();
+
+		for(String word : new String[] {"cat", "dog", "cat"}) {
+			entry = db.fetchWordEntry(word);
+			db.fetchPage(entry);
+			assertEquals(createPage(word, "text of " + word), entry.getContent());
+			assertEquals("source of " + word, entry.getSource());
+		}
+		assertEquals(2, records.getMisses());
+		assertEquals(1, records.getHits());
+		assertEquals(2, records.getRecordCount());
+		db.close();
+	}
+
+	@Test
+	public void pageLargerThanWriteBufferIsWritten() {
+		StringBuilder text = new StringBuilder();
+		WordDatabase db;
+		WordEntry entry;
+
+		for(int i = 0; i < 40000; i++) {
+			text.append("line ").append(i).append(" \u00e4\n");
+		}
+		db = createDatabase("cat");
+		db.newWord("dog", "source of dog", createPage("dog", text.toString()));
+		db.newWord("mouse", "source of mouse", createPage("mouse", "text of mouse"));
+		db.close();
+
+		db = new WordDatabase(filename);
+		entry = db.fetchWordEntry("dog");
+		assertEquals(createPage("dog", text.toString()), entry.getContent());
+		entry = db.fetchWordEntry("mouse");
+		assertEquals(createPage("mouse", "text of mouse"), entry.getContent());
+		db.close();
+	}
+
+	private TextNode createBoilerplatePage(String title) {
+		TextNode root = createPage(title, "text of " + title);
+		TextNode list = root.appendChild(new TextNode(TextNode.LIST_TYPE));
+
+		for(int i = 0; i < 20; i++) {
+			TextNode item = list.appendChild(new TextNode(TextNode.LIST_ITEM_TYPE));
+			item.appendChild(new TextNode(TextNode.LINK_TYPE, "Appendix:" + i)).setTextContent("see also " + i);
+		}
+		return root;
+	}
+
+	@Test
+	public void sharedSubtreesAreWrittenOnce() {
+		long[] sizes = new long[2];
+
+		for(int run = 0; run < 2; run++) {
+			WordDatabase db;
+
+			db = new WordDatabase(filename);
+			db.setSharedSubtrees(run == 1);
+			for(int i = 0; i < 10; i++) {
+				String word = String.format("word%03d", i);
+				db.newWord(word, "source of " + word, createBoilerplatePage(word));
+			}
+			db.close();
+			sizes[run] = new File(filename).length();
+
+			/* the pages are read without the option */
+			db = new WordDatabase(filename);
+			for(int i = 0; i < 10; i++) {
+				String word = String.format("word%03d", i);
+				assertEquals(createBoilerplatePage(word), db.fetchWordEntry(word).getContent());
+			}
+			db.close();
+
+			assertEquals(run == 1, new File(filename + ".sub").exists());
+			deleteDirectory(directory);
+			directory.mkdirs();
+		}
+		assertTrue(sizes[1] < sizes[0] - 8 * 200);
+	}
+
+	@Test
+	public void pagesAreReadWhileWordsAreWritten() throws InterruptedException {
+		WordDatabase first;
+		final WordDatabase db;
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] readers;
+
+		first = new WordDatabase(filename);
+		for(int i = 0; i < 20; i++) {
+			String word = String.format("word%03d", i);
+			first.newWord(word, "source of " + word, createPage(word, "text of " + word));
+		}
+		first.close();
+
+		/* the entries of the reopened database read their records */
+		db = new WordDatabase(filename);
+		db.setPageCacheSize(0);
+		db.setRecordCacheSize(0);
+
+		readers = new Thread[4];
+		for(int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread() {
+				public void run() {
+					for(int round = 0; round < 50; round++) {
+						for(int j = 0; j < 20; j++) {
+							String word = String.format("word%03d", j);
+							WordEntry entry = db.fetchWordEntry(word);
+
+							if(!createPage(word, "text of " + word).equals(entry.getContent())) {
+								failures.incrementAndGet();
+							}
+						}
+					}
+				}
+			};
+			readers[i].start();
+		}
+
+		/* the records are appended while the pages are read */
+		for(int i = 20; i < 200; i++) {
+			String word = String.format("word%03d", i);
+			db.newWord(word, "source of " + word, createPage(word, "text of " + word));
+			if(i % 10 == 0) {
+				db.sync();
+			}
+		}
+		for(Thread reader : readers) {
+			reader.join();
+		}
+		db.sync();
+
+		assertEquals(0, failures.get());
+		assertEquals(createPage("word199", "text of word199"), db.fetchWordEntry("word199").getContent());
+		db.close();
+	}
+
+	@Test
+	public void pagesAreFetchedInBatches() throws Exception {
+		for(int i = 0; i < 4; i++) {
+			boolean compression = (i & 1) != 0, mapped = (i & 2) != 0;
+			List<WordEntry> entries = new ArrayList<WordEntry>();
+			Map<WordEntry, TextNode> contents;
+			WordDatabase db;
+
+			db = new WordDatabase(filename);
+			db.setCompression(compression);
+			for(int j = 0; j < 30; j++) {
+				String word = String.format("word%03d", j);
+				db.newWord(word, "source of " + word, createPage(word, "text of " + word));
+			}
+			db.close();
+
+			db = new WordDatabase(filename);
+			db.setCompression(compression);
+			db.setMappedReads(mapped);
+			for(int j = 29; j >= 0; j -= 2) {
+				entries.add(db.fetchWordEntry(String.format("word%03d", j)));
+			}
+			contents = db.fetchPages(entries).get();
+			assertEquals(15, contents.size());
+
+			for(WordEntry entry : entries) {
+				String word = entry.getWord();
+
+				assertEquals(createPage(word, "text of " + word), contents.get(entry));
+				assertTrue(entry.isLoaded());
+				assertEquals(createPage(word, "text of " + word), entry.getContent());
+				assertEquals("source of " + word, entry.getSource());
+			}
+			assertEquals(0, db.getPageCache().getMisses());
+
+			/* the loaded pages aren't read again */
+			assertTrue(db.fetchPages(entries).get().isEmpty());
+			db.close();
+
+			deleteDirectory(directory);
+			directory.mkdirs();
+		}
+	}
+
+	@Test
+	public void bulkLoadedWordsAreFoundAfterFinish() throws IOException {
+		WordDatabase db;
+		BulkLoader loader;
+		WordEntry entry;
+
+		db = createDatabase("cat");
+		assertFalse(db.isEmpty());
+
+		loader = db.bulkLoad();
+		for(String word : new String[] {"mouse", "dog", "cat", "ant"}) {
+			loader.add(word, "new source of " + word, createPage(word, "new text of " + word));
+		}
+		assertFalse(db.containsWordEntry("dog"));
+		loader.finish();
+
+		assertArrayEquals(new String[] {"ant", "cat", "dog", "mouse"}, search(db, ""));
+		entry = db.fetchWordEntry("cat");
+		assertEquals("new source of cat", entry.getSource());
+		db.close();
+
+		db = new WordDatabase(filename);
+		entry = db.fetchWordEntry("mouse");
+		assertEquals(createPage("mouse", "new text of mouse"), entry.getContent());
+	}
+
+	@Test
+	public void lostIndexIsReconstructed() {
+		WordDatabase db;
+		WordEntry entry;
+
+		db = createDatabase("cat", "dog", "mouse");
+		db.setCompression(true);
+		entry = db.fetchWordEntry("dog");
+		entry.setContent(createPage("dog", "new text of dog"));
+		db.updateWord(entry);
+		db.close();
+
+		new File(directory, "index.db").delete();
+		new File(directory, "index.db2").delete();
+
+		db = new WordDatabase(filename);
+		assertArrayEquals(new String[] {"cat", "dog", "mouse"}, search(db, ""));
+		entry = db.fetchWordEntry("dog");
+		assertEquals(createPage("dog", "new text of dog"), entry.getContent());
+		assertEquals("source of dog", entry.getSource());
+		db.close();
+	}
+
+	private int countSegments() {
+		int count = 0;
+
+		for(File file : directory.listFiles()) {
+			if(file.getName().matches("datastore\\.db\\.seg\\.[0-9]+")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void checkpointsWriteSegmentsThatAreMerged() throws IOException {
+		WordDatabase db;
+		BulkLoader loader;
+		WordEntry entry;
+
+		/* the base index is much larger than the changes */
+		db = new WordDatabase(filename);
+		loader = db.bulkLoad();
+		for(String word : new String[] {"ant", "bee", "cat", "dog", "eel", "fox", "gnu", "hen", "owl"}) {
+			loader.add(word, "source of " + word, createPage(word, "text of " + word));
+		}
+		for(int i = 0; i < 32; i++) {
+			String word = String.format("yak%02d", i);
+			loader.add(word, "source of " + word, createPage(word, "text of " + word));
+		}
+		loader.finish();
+		assertEquals(0, countSegments());
+
+		db.removeWord("cat");
+		db.checkpoint();
+		db.newWord("cow", "source of cow", createPage("cow", "text of cow"));
+		db.checkpoint();
+		assertEquals(2, countSegments());
+
+		/* the segments are merged together while they are small */
+		for(String word : new String[] {"dog", "eel"}) {
+			entry = db.fetchWordEntry(word);
+			entry.setContent(createPage(word, "new text of " + word));
+			db.updateWord(entry);
+			db.checkpoint();
+		}
+		assertEquals(1, countSegments());
+		db.close();
+
+		db = new WordDatabase(filename);
+		assertArrayEquals(new String[] {"ant", "bee", "cow", "dog", "eel", "fox", "gnu", "hen", "owl", "yak00"},
+		                  search(db, ""));
+		assertFalse(db.containsWordEntry("cat"));
+		assertEquals(createPage("dog", "new text of dog"), db.fetchWordEntry("dog").getContent());
+
+		/* and to the index when they get larger */
+		for(String[] words : new String[][] {{"ant", "yak00", "yak01"}, {"bee", "yak02", "yak03"}, {"dog", "yak04", "yak05"}}) {
+			for(String word : words) {
+				db.removeWord(word);
+			}
+			db.checkpoint();
+		}
+		assertEquals(0, countSegments());
+		assertArrayEquals(new String[] {"cow", "eel", "fox", "gnu", "hen", "owl", "yak06", "yak07", "yak08", "yak09"},
+		                  search(db, ""));
+		db.close();
+
+		db = new WordDatabase(filename);
+		assertArrayEquals(new String[] {"cow", "eel", "fox", "gnu", "hen", "owl", "yak06", "yak07", "yak08", "yak09"},
+		                  search(db, ""));
+		assertEquals(createPage("eel", "new text of eel"), db.fetchWordEntry("eel").getContent());
+	}
+
+	@Test
+	public void compactionDropsReplacedRecords() {
+		WordDatabase db;
+		WordEntry entry, old;
+		long size;
+
+		db = new WordDatabase(filename);
+		db.setCompression(true);
+		db.setMappedReads(true);
+		writeManyPages(db, 30);
+
+		old = db.fetchWordEntry("word012");
+		for(int i = 0; i < 3; i++) {
+			for(String word : new String[] {"word003", "word012"}) {
+				entry = db.fetchWordEntry(word);
+				entry.setContent(createPage(word, "text " + i + " of " + word));
+				db.updateWord(entry);
+			}
+			db.checkpoint();
+		}
+		db.removeWord("word020");
+		db.checkpoint();
+		size = new File(filename).length();
+
+		db.compactDataStore();
+		assertTrue(new File(filename).length() < size);
+		assertEquals(0, countSegments());
+		assertFalse(db.containsWordEntry("word020"));
+
+		/* the entry from before the compaction finds its new record */
+		assertEquals(createPage("word012", "text 2 of word012"), old.getContent());
+		assertEquals(createPage("word003", "text 2 of word003"), db.fetchWordEntry("word003").getContent());
+		db.close();
+
+		db = new WordDatabase(filename);
+		assertArrayEquals(new String[] {"word000", "word001", "word002", "word003", "word004",
+		                                "word005", "word006", "word007", "word008", "word009"},
+		                  search(db, "word0"));
+		assertFalse(db.containsWordEntry("word020"));
+		assertEquals(createPage("word012", "text 2 of word012"), db.fetchWordEntry("word012").getContent());
+		assertEquals(createPage("word029", "text of word029"), db.fetchWordEntry("word029").getContent());
+	}
+
+	@Test
+	public void filterIsWrittenWithCheckpoint() {
+		WordDatabase db;
+		File filter;
+
+		filter = new File(filename + ".bloom");
+		db = createDatabase("cat", "dog");
+		db.checkpoint();
+		assertTrue(filter.exists());
+
+		db = new WordDatabase(filename);
+		assertTrue(db.containsWordEntry("cat"));
+		assertFalse(db.containsWordEntry("mouse"));
+		db.newWord("mouse", "source of mouse", createPage("mouse", "text of mouse"));
+		db.close();
+
+		/* the filter that doesn't match the index is built again */
+		db = createDatabase("eel");
+		db.close();
+		filter.delete();
+
+		db = new WordDatabase(filename);
+		assertTrue(db.containsWordEntry("mouse"));
+		assertTrue(db.containsWordEntry("eel"));
+		assertFalse(db.containsWordEntry("owl"));
+		db.removeWord("cat");
+		db.close();
+
+		db = new WordDatabase(filename);
+		assertFalse(db.containsWordEntry("cat"));
+		assertEquals("source of dog", db.fetchWordEntry("dog").getSource());
+	}
+
+	@Test
+	public void missingFilterIsBuiltInBackground() throws InterruptedException {
+		WordDatabase db;
+		File filter;
+
+		filter = new File(filename + ".bloom");
+		db = createDatabase("cat", "dog");
+		db.close();
+		assertTrue(filter.delete());
+
+		/* the words are found from the index before the filter is built */
+		db = new WordDatabase(filename);
+		assertTrue(db.containsWordEntry("cat"));
+		assertFalse(db.containsWordEntry("owl"));
+
+		for(int i = 0; i < 500 && !filter.exists(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(filter.exists());
+		assertTrue(db.containsWordEntry("dog"));
+		db.close();
+	}
+
+	@Test
+	public void databaseIsEmptyAfterAllWordsAreRemoved() {
+		WordDatabase db;
+
+		db = createDatabase("cat", "dog");
+		db.checkpoint();
+		assertFalse(db.isEmpty());
+
+		db.removeWord("cat");
+		assertFalse(db.isEmpty());
+		db.removeWord("dog");
+		assertTrue(db.isEmpty());
+		db.close();
+
+		/* the removals are only in a segment of the index */
+		db = new WordDatabase(filename);
+		assertTrue(db.isEmpty());
+		db.newWord("eel", "source of eel", createPage("eel", "text of eel"));
+		assertFalse(db.isEmpty());
+		db.close();
+	}
 }
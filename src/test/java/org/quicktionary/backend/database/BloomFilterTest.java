@@ -0,0 +1,70 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BloomFilterTest {
+	@Test
+	public void addedWordsAreAlwaysFound() {
+		BloomFilter filter = new BloomFilter(10000);
+		int falsePositives = 0;
+
+		for(int i = 0; i < 10000; i++) {
+			filter.add("word" + i);
+		}
+		assertFalse(filter.isFull());
+
+		for(int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain("word" + i));
+			if(filter.mightContain("other" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < 300);
+
+		/* the words that seem to exist already aren't counted */
+		assertTrue(filter.size() > 9900);
+		for(int i = 10000; i < 10500; i++) {
+			filter.add("word" + i);
+		}
+		assertTrue(filter.isFull());
+	}
+
+	@Test
+	public void filterIsReadBack() throws IOException {
+		BloomFilter filter = new BloomFilter(100);
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+		filter.add("cat");
+		filter.add("dog");
+		filter.add("dog");
+		filter.write(new DataOutputStream(buffer));
+
+		filter = BloomFilter.read(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+		assertEquals(2, filter.size());
+		assertTrue(filter.mightContain("cat"));
+		assertTrue(filter.mightContain("dog"));
+		assertFalse(filter.mightContain("mouse"));
+	}
+}
@@ -0,0 +1,92 @@
+/* Quicktionary test
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ExternalSorterTest {
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("quicktionary").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void wordsAreMergedFromRuns() throws IOException {
+		ExternalSorter sorter = new ExternalSorter(directory, 3);
+		Iterator<Map.Entry<String, WordEntryIO>> iter;
+		String[] words = {"mouse", "cat", "horse", "dog", "bird", "ant", "cow"};
+		String previous = "";
+
+		for(int i = 0; i < words.length; i++) {
+			sorter.add(words[i], "description of " + words[i], i);
+		}
+		assertEquals(2, directory.listFiles().length);
+
+		iter = sorter.sorted();
+		for(int i = 0; i < words.length; i++) {
+			Map.Entry<String, WordEntryIO> entry = iter.next();
+
+			assertTrue(previous.compareTo(entry.getKey()) < 0);
+			assertEquals("description of " + entry.getKey(), entry.getValue().data.getDescription());
+			previous = entry.getKey();
+		}
+		assertFalse(iter.hasNext());
+
+		sorter.close();
+		assertEquals(0, directory.listFiles().length);
+	}
+
+	@Test
+	public void laterWordReplacesEarlier() throws IOException {
+		ExternalSorter sorter = new ExternalSorter(directory, 2);
+		Iterator<Map.Entry<String, WordEntryIO>> iter;
+
+		sorter.add("dog", null, 1);
+		sorter.add("cat", null, 2);
+		sorter.add("dog", null, 3);
+		sorter.add("dog", null, 4);
+		sorter.add("ant", null, 5);
+
+		iter = sorter.sorted();
+		assertEquals(5, iter.next().getValue().address);
+		assertEquals(2, iter.next().getValue().address);
+		assertEquals(4, iter.next().getValue().address);
+		assertFalse(iter.hasNext());
+		sorter.close();
+	}
+}
@@ -0,0 +1,96 @@
+/* Quicktionary test
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.quicktionary.backend.TextNode;
+
+public class IndexRebuilderTest {
+	private File directory;
+	private File dataStoreFile;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("quicktionary").toFile();
+		dataStoreFile = new File(directory, "datastore.db");
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private void writeWords(int count) {
+		WordDatabase db = new WordDatabase(dataStoreFile.getPath());
+
+		db.setCompression(true);
+		for(int i = 0; i < count; i++) {
+			String word = String.format("word%03d", i);
+			TextNode root = new TextNode(TextNode.ROOT_TYPE);
+
+			root.appendChild(new TextNode(TextNode.PLAIN_TYPE)).setTextContent("text of " + word);
+			db.newWord(word, "source of " + word, root);
+		}
+		db.close();
+	}
+
+	@Test
+	public void chunksAreJoinedAtRecordBoundaries() throws IOException {
+		DataStoreIO io;
+		RandomAccessFile file;
+		IndexRebuilder rebuilder;
+		ExternalSorter sorter;
+		Iterator<Map.Entry<String, WordEntryIO>> iter;
+
+		writeWords(300);
+
+		io = new DataStoreIO(dataStoreFile);
+		file = new RandomAccessFile(dataStoreFile, "r");
+		rebuilder = new IndexRebuilder(io, new MappedFile(file.getChannel()),
+		                               io.getFirstRecordAddress(), 512);
+		sorter = new ExternalSorter(directory, 1000);
+
+		assertEquals(300, rebuilder.rebuild(sorter));
+		iter = sorter.sorted();
+		for(int i = 0; i < 300; i++) {
+			Map.Entry<String, WordEntryIO> entry = iter.next();
+
+			assertEquals(String.format("word%03d", i), entry.getKey());
+			assertEquals(io.getIndex().find(entry.getKey()).getAddress(), entry.getValue().address);
+		}
+		assertFalse(iter.hasNext());
+
+		sorter.close();
+		file.close();
+	}
+}
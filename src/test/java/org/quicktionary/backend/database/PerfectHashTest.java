@@ -0,0 +1,95 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.quicktionary.backend.WordEntry;
+
+public class PerfectHashTest {
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("quicktionary").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private IndexTable writeIndex(boolean perfectHash, int count) throws IOException {
+		SortedMap<String, WordEntryIO> words = new TreeMap<String, WordEntryIO>();
+		File file = new File(directory, "index.db");
+		IndexIO index = new IndexIO(null, file);
+
+		for(int i = 0; i < count; i++) {
+			String word = "word" + i + ((i % 7 == 0) ? "ä" : "");
+			words.put(word, new WordEntryIO(new WordEntry(word), 1000 + i));
+		}
+		index.setPerfectHash(perfectHash);
+		return index.writeSegment(file, words.entrySet().iterator());
+	}
+
+	@Test
+	public void everyWordIsFound() throws IOException {
+		for(boolean perfectHash : new boolean[] {true, false}) {
+			IndexTable table = writeIndex(perfectHash, 5000);
+
+			for(int i = 0; i < 5000; i++) {
+				String word = "word" + i + ((i % 7 == 0) ? "ä" : "");
+				IndexTable.Cursor cursor = table.find(word);
+
+				assertEquals(word, cursor.getWord());
+				assertEquals(1000 + i, cursor.getAddress());
+			}
+			assertNull(table.find("word1ä"));
+			assertNull(table.find("other"));
+			assertNull(table.find(""));
+			table.close();
+		}
+	}
+
+	@Test
+	public void hashIsWrittenAfterRestartTable() throws IOException {
+		long withoutHash, withHash;
+
+		writeIndex(false, 1000).close();
+		withoutHash = new File(directory, "index.db").length();
+		writeIndex(true, 1000).close();
+		withHash = new File(directory, "index.db").length();
+
+		/* a few bits for the levels and ten bits for the slot */
+		assertTrue(withHash > withoutHash);
+		assertTrue(withHash - withoutHash < 1000 * 16 / 8 + 100);
+	}
+}
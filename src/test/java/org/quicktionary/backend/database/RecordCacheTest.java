@@ -0,0 +1,72 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RecordCacheTest {
+	private ByteBuffer createRecord(int size, int value) {
+		byte[] bytes = new byte[size];
+
+		Arrays.fill(bytes, (byte)value);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	@Test
+	public void recordIsKeptWhileItIsDecoded() {
+		RecordCache cache = new RecordCache(1024 * 1024);
+		RecordCache.Record record;
+		ByteBuffer buffer;
+
+		cache.put(0, 0, createRecord(100, 7));
+		record = cache.get(0);
+		assertNotNull(record);
+
+		/* the only slab is filled again while the record is held */
+		for(int i = 1; i <= 20; i++) {
+			cache.put(i, 0, createRecord(100 * 1024, i));
+		}
+		assertNull(cache.get(0));
+
+		buffer = record.getBuffer();
+		assertEquals(0, buffer.get());
+		assertEquals(100, buffer.remaining());
+		while(buffer.hasRemaining()) {
+			assertEquals(7, buffer.get());
+		}
+		record.release();
+	}
+
+	@Test
+	public void emptiedSlabIsReused() {
+		RecordCache cache = new RecordCache(1024 * 1024);
+		RecordCache.Record record;
+
+		for(int i = 0; i <= 20; i++) {
+			cache.put(i, 1, createRecord(100 * 1024, i));
+			record = cache.get(i);
+			record.release();
+		}
+		record = cache.get(20);
+		assertEquals(1, record.getBuffer().get());
+		assertEquals(20, record.getBuffer().get());
+		record.release();
+	}
+}
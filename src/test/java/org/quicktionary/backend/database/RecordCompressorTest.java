@@ -0,0 +1,52 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RecordCompressorTest {
+	private byte[] createRecord() {
+		byte[] record = new byte[4000];
+
+		Arrays.fill(record, (byte)'a');
+		return record;
+	}
+
+	@Test
+	public void compressedRecordIsRestored() throws IOException {
+		RecordCompressor compressor = new RecordCompressor(null);
+		byte[] record = createRecord();
+		byte[] compressed = compressor.compress(record);
+		ByteBuffer restored;
+
+		assertNotNull(compressed);
+		restored = compressor.decompress(ByteBuffer.wrap(compressed), record.length);
+		assertEquals(ByteBuffer.wrap(record), restored);
+	}
+
+	@Test(expected = IOException.class)
+	public void tooLargeLengthIsRejected() throws IOException {
+		RecordCompressor compressor = new RecordCompressor(null);
+		byte[] compressed = compressor.compress(createRecord());
+
+		compressor.decompress(ByteBuffer.wrap(compressed), Integer.MAX_VALUE);
+	}
+}
@@ -0,0 +1,128 @@
+/* Quicktionary test
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.quicktionary.backend.TextNode;
+import org.quicktionary.backend.WordEntry;
+
+/**
+ * Measures the latency of the prefix searches while words are
+ * imported to the same database from another thread.
+ *
+ * This isn't run with the tests. Run it after test-compile with:
+ * java -cp target/classes:target/test-classes
+ *      org.quicktionary.backend.database.SearchContentionBenchmark
+ */
+public class SearchContentionBenchmark {
+	private final static int INDEX_WORDS = 50000;
+	private final static long DURATION = 5000L * 1000 * 1000;
+
+	private static volatile boolean importing;
+
+	public static void main(String[] args) throws Exception {
+		File directory = Files.createTempDirectory("quicktionary").toFile();
+		WordDatabase db;
+		Thread importer;
+
+		db = new WordDatabase(directory + File.separator + "datastore.db");
+		for(int i = 0; i < INDEX_WORDS; i++) {
+			String word = "word" + i;
+			db.newWord(word, "source of " + word, createPage(word));
+		}
+		db.checkpoint();
+
+		report("idle", measure(db));
+
+		importing = true;
+		importer = new Thread(new Importer(db));
+		importer.start();
+		report("during import", measure(db));
+		importing = false;
+		importer.join();
+
+		db.close();
+		for(File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private static TextNode createPage(String word) {
+		TextNode root = new TextNode(TextNode.ROOT_TYPE);
+		root.appendChild(new TextNode(TextNode.PLAIN_TYPE)).setTextContent("text of " + word);
+		return root;
+	}
+
+	private static long[] measure(WordDatabase db) {
+		WordEntry[] entries = new WordEntry[10];
+		Random random = new Random(1);
+		long[] times = new long[1024];
+		long end = System.nanoTime() + DURATION;
+		int count = 0;
+
+		while(System.nanoTime() < end) {
+			String prefix = "word" + random.nextInt(INDEX_WORDS / 10);
+			long start = System.nanoTime();
+
+			db.search(prefix).fetch(entries, entries.length);
+
+			if(count == times.length) {
+				times = Arrays.copyOf(times, count * 2);
+			}
+			times[count++] = System.nanoTime() - start;
+		}
+		times = Arrays.copyOf(times, count);
+		Arrays.sort(times);
+		return times;
+	}
+
+	private static void report(String name, long[] times) {
+		System.out.printf("%-14s median %6d us, 99%% %6d us, max %7d us%n", name,
+		                  times[times.length / 2] / 1000,
+		                  times[times.length * 99 / 100] / 1000,
+		                  times[times.length - 1] / 1000);
+	}
+
+	private static class Importer implements Runnable {
+		private WordDatabase db;
+
+		public Importer(WordDatabase db) {
+			this.db = db;
+		}
+
+		public void run() {
+			int i = 0;
+
+			while(importing) {
+				String word = "import" + i++;
+				db.newWord(word, "source of " + word, createPage(word));
+
+				/* the log fills up quickly during the import */
+				if(i % 20000 == 0) {
+					db.checkpoint();
+				}
+			}
+			db.sync();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/* Quicktionary test
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.quicktionary.backend.TextNode;
+
+public class TextNodeIOTest {
+	private TextNode createTree() {
+		TextNode root, template, paragraph;
+
+		root = new TextNode(TextNode.ROOT_TYPE);
+		root.appendChild(new TextNode(TextNode.HEADER_TYPE, "2")).setTextContent("English");
+		template = root.appendChild(new TextNode(TextNode.TEMPLATE_TYPE, "en-noun"));
+		template.appendChild(new TextNode(TextNode.PLAIN_TYPE, "")).setTextContent("");
+		paragraph = root.appendChild(new TextNode(TextNode.PARAGRAPH_TYPE));
+		paragraph.appendChild(new TextNode(TextNode.PLAIN_TYPE)).setTextContent("A small ä word.");
+		paragraph.appendChild(new TextNode(TextNode.MISC_TYPE));
+
+		return root;
+	}
+
+	private void writeLegacyString(DataOutputStream output, String string) throws IOException {
+		byte[] buffer = string.getBytes("UTF-8");
+		output.writeInt(buffer.length);
+		output.write(buffer);
+	}
+
+	@Test
+	public void encodeAndDecode() {
+		TextNode root = createTree();
+
+		assertEquals(root, TextNodeIO.decodeData(TextNodeIO.encodeData(root)));
+	}
+
+	@Test
+	public void compactFormatIsSmall() {
+		TextNode leaf = new TextNode(TextNode.PLAIN_TYPE);
+		leaf.setTextContent("abc");
+
+		/* version, tag, length and the text */
+		assertEquals(1 + 1 + 1 + 3, TextNodeIO.encodeData(leaf).length);
+	}
+
+	private TextNode createRepeatingTree() {
+		TextNode root, list;
+
+		root = new TextNode(TextNode.ROOT_TYPE);
+		list = root.appendChild(new TextNode(TextNode.LIST_TYPE));
+		for(int i = 0; i < 20; i++) {
+			TextNode item = list.appendChild(new TextNode(TextNode.LIST_ITEM_TYPE));
+			item.appendChild(new TextNode(TextNode.TEMPLATE_TYPE, "quote-book")).setTextContent("en");
+			item.appendChild(new TextNode(TextNode.LINK_TYPE, "Appendix:Glossary")).setTextContent("item " + i);
+		}
+		return root;
+	}
+
+	@Test
+	public void repeatedStringsAreWrittenOnce() {
+		TextNode root = createRepeatingTree();
+		byte[] data = TextNodeIO.encodeData(root);
+
+		assertEquals(root, TextNodeIO.decodeData(data));
+		assertTrue(data.length < 20 * ("quote-book".length() + "Appendix:Glossary".length()));
+	}
+
+	private TextNode decodeShared(TextNode root, StringInterner strings) {
+		return TextNodeIO.decodeData(ByteBuffer.wrap(TextNodeIO.encodeData(root)), null, strings);
+	}
+
+	@Test
+	public void decodedStringsAreShared() {
+		StringInterner strings = new StringInterner(100);
+		TextNode first = decodeShared(createRepeatingTree(), strings);
+		TextNode second = decodeShared(createRepeatingTree(), strings);
+		TextNode firstItem = first.getChildren().get(0).getChildren().get(0);
+		TextNode lastItem = second.getChildren().get(0).getChildren().get(19);
+
+		assertSame(firstItem.getChildren().get(0).getParameter(),
+		           lastItem.getChildren().get(0).getParameter());
+		assertSame(firstItem.getChildren().get(1).getParameter(),
+		           lastItem.getChildren().get(1).getParameter());
+	}
+
+	@Test
+	public void longAndOldStringsAreNotShared() {
+		StringInterner strings = new StringInterner(2);
+		String longName = "Appendix:Glossary of the terms that are used in the entries";
+		TextNode root, first, second;
+
+		root = createRepeatingTree();
+		root.appendChild(new TextNode(TextNode.LINK_TYPE, longName));
+		root.appendChild(new TextNode(TextNode.LINK_TYPE, longName));
+		first = decodeShared(root, strings);
+		second = decodeShared(root, strings);
+
+		assertEquals(2, strings.size());
+		assertEquals(longName, first.getChildren().get(1).getParameter());
+		assertNotSame(first.getChildren().get(1).getParameter(),
+		              second.getChildren().get(1).getParameter());
+	}
+
+	@Test
+	public void decodeLegacyFormat() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(stream);
+		TextNode expected, header;
+
+		/* root with one header */
+		output.writeInt(TextNode.ROOT_TYPE);
+		output.writeInt(1);
+		writeLegacyString(output, "");
+		output.writeInt(TextNode.HEADER_TYPE);
+		output.writeInt(-1);
+		writeLegacyString(output, "1");
+		writeLegacyString(output, "title");
+
+		expected = new TextNode(TextNode.ROOT_TYPE, "");
+		header = expected.appendChild(new TextNode(TextNode.HEADER_TYPE, "1"));
+		header.setTextContent("title");
+
+		assertEquals(expected, TextNodeIO.decodeData(stream.toByteArray()));
+	}
+
+	@Test
+	public void decodeTruncatedData() {
+		byte[] data = TextNodeIO.encodeData(createTree());
+		byte[] truncated = new byte[data.length / 2];
+
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		assertNull(TextNodeIO.decodeData(truncated));
+	}
+}
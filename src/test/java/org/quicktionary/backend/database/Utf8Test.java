@@ -0,0 +1,116 @@
+/* Quicktionary backend - Word translator app
+ * Copyright (C) 2015  Aleksi Salmela <aleksi.salmela at helsinki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.quicktionary.backend.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.quicktionary.backend.WordEntry;
+
+public class Utf8Test {
+	/* the characters from U+E000 to U+FFFF come after the surrogates */
+	private final static String[] WORDS = {
+		"", "a", "ab", "abc", "b", "z\u00e4", "\u00e4", "\u00f6",
+		"\u4e2d", "\ue000", "\uff01", "\uffff", "\ud83d\ude00",
+		"\ud83d\ude00a", "\ud800\udc00", "a\uff01", "a\ud83d\ude00"
+	};
+
+	private static int sign(int value) {
+		return (value > 0) ? 1 : (value < 0) ? -1 : 0;
+	}
+
+	@Test
+	public void orderIsTheOrderOfStrings() {
+		for(String a : WORDS) {
+			for(String b : WORDS) {
+				byte[] x = WordDatabase.getBytes(a);
+				byte[] y = WordDatabase.getBytes(b);
+
+				assertEquals(a + " " + b, sign(a.compareTo(b)),
+				             sign(Utf8.compare(x, 0, x.length, y, 0, y.length)));
+			}
+		}
+	}
+
+	@Test
+	public void encodedBytesAreTheBytesOfStrings() {
+		String[] strings = {"a\ud83d", "\ude00b", "\ud83d\ud83d\ude00"};
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+
+		for(String[] words : new String[][] {WORDS, strings}) {
+			for(String word : words) {
+				byte[] expected = WordDatabase.getBytes(word);
+
+				buffer.clear();
+				Utf8.encode(word, buffer);
+				assertEquals(word, expected.length, Utf8.length(word));
+				assertEquals(word, expected.length, buffer.position());
+				assertArrayEquals(word, expected, Arrays.copyOf(buffer.array(), buffer.position()));
+			}
+		}
+	}
+
+	@Test
+	public void prefixIsCompared() {
+		byte[] word = WordDatabase.getBytes("xcat");
+
+		assertTrue(Utf8.startsWith(word, 1, 3, WordDatabase.getBytes("ca")));
+		assertTrue(Utf8.startsWith(word, 1, 3, new byte[0]));
+		assertFalse(Utf8.startsWith(word, 1, 3, WordDatabase.getBytes("cats")));
+		assertFalse(Utf8.startsWith(word, 1, 3, WordDatabase.getBytes("xc")));
+	}
+
+	@Test
+	public void indexIsSearchedInTheOrderOfStrings() throws IOException {
+		File directory = Files.createTempDirectory("quicktionary").toFile();
+		SortedMap<String, WordEntryIO> words = new TreeMap<String, WordEntryIO>();
+		File file = new File(directory, "index.db");
+		List<String> found = new ArrayList<String>();
+		IndexTable table;
+
+		for(int i = 0; i < WORDS.length; i++) {
+			words.put(WORDS[i], new WordEntryIO(new WordEntry(WORDS[i]), i));
+		}
+		table = new IndexIO(null, file).writeSegment(file, words.entrySet().iterator());
+		try {
+			for(IndexTable.Cursor cursor = table.seek(""); cursor.isValid(); cursor.next()) {
+				found.add(cursor.getWord());
+			}
+			assertEquals(new ArrayList<String>(words.keySet()), found);
+
+			for(String word : WORDS) {
+				assertEquals(word, table.find(word).getWord());
+				assertEquals(word, table.seek(word).getWord());
+			}
+			assertFalse(table.seek("\uffff!").isValid());
+			assertNull(table.find(""));
+		} finally {
+			table.close();
+			file.delete();
+			directory.delete();
+		}
+	}
+}